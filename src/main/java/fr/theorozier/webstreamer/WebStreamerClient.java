@@ -1,5 +1,6 @@
 package fr.theorozier.webstreamer;
 
+import fr.theorozier.webstreamer.display.DisplayBlockEntity;
 import fr.theorozier.webstreamer.display.render.DisplayBlockEntityRenderer;
 import fr.theorozier.webstreamer.display.render.DisplayLayerManager;
 import fr.theorozier.webstreamer.display.screen.DisplayScreen;
@@ -9,7 +10,10 @@ import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.blockrenderlayer.v1.BlockRenderLayerMap;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientBlockEntityEvents;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
 import net.fabricmc.fabric.api.client.rendering.v1.BlockEntityRendererRegistry;
+import net.fabricmc.fabric.api.client.rendering.v1.WorldRenderEvents;
 import net.minecraft.client.gui.screens.MenuScreens;
 import net.minecraft.client.renderer.RenderType;
 import org.bytedeco.ffmpeg.global.avutil;
@@ -45,6 +49,17 @@ public class WebStreamerClient implements ClientModInitializer {
 
         MenuScreens.register(WebStreamer.DISPLAY_SCREEN_HANDLER, DisplayScreen::new);
 
+        // State shared by all displays, the player state on each tick and the camera on each frame.
+        ClientTickEvents.END_CLIENT_TICK.register(client -> DISPLAY_LAYERS.getRenderContext().tick(client));
+        WorldRenderEvents.AFTER_SETUP.register(context -> DISPLAY_LAYERS.getRenderContext().setup(context.camera(), context.frustum()));
+
+        // Displays release their layer as soon as they are unloaded or broken.
+        ClientBlockEntityEvents.BLOCK_ENTITY_UNLOAD.register((blockEntity, world) -> {
+            if (blockEntity instanceof DisplayBlockEntity display) {
+                display.releaseRenderData();
+            }
+        });
+
         System.setProperty("org.bytedeco.javacpp.logger", "slf4j");
 
         final String javacppVersion;
@@ -62,7 +77,8 @@ public class WebStreamerClient implements ClientModInitializer {
             "org.bytedeco", "ffmpeg", "6.0-" + javacppVersion, Loader.getPlatform()
         )));
 
-        DISPLAY_URLS = new DisplayUrlManager();
+        // URLs are released by displays on render thread, evicted ids will never be resumed.
+        DISPLAY_URLS = new DisplayUrlManager(id -> DISPLAY_LAYERS.freeStandbyLayer(id));
         DISPLAY_LAYERS = new DisplayLayerManager();
         TWITCH_CLIENT = new TwitchClient();
 
@@ -218,6 +218,18 @@ public class DisplayBlockEntity extends BlockEntity implements ExtendedScreenHan
         }
     }
 
+    /**
+     * <b>Should only be called from client side</b>, when this display is unloaded or
+     * removed, in order to release the display layer referenced by its render data.
+     */
+    public void releaseRenderData() {
+        synchronized (this.cachedRenderDataGuard) {
+            if (this.cachedRenderData != null) {
+                ((fr.theorozier.webstreamer.display.render.DisplayRenderData) this.cachedRenderData).release();
+            }
+        }
+    }
+
     public UUID getUuid() {
         return uuid;
     }
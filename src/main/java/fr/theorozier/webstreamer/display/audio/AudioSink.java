@@ -0,0 +1,67 @@
+package fr.theorozier.webstreamer.display.audio;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.nio.ShortBuffer;
+
+/**
+ * <p>Abstraction of the audio backend used by {@link AudioStreamingSource} and
+ * {@link AudioStreamingBuffer}, modeled after OpenAL streaming sources. Buffers and
+ * sources are identified by non-zero integer names.</p>
+ * <p>The default implementation is {@link OpenAlAudioSink}, {@link LoopbackAudioSink}
+ * can be used to run the audio pipeline without audio device.</p>
+ */
+@Environment(EnvType.CLIENT)
+public interface AudioSink {
+
+    /**
+     * Generate a new buffer and fill it with the given samples. Contrary to other methods,
+     * this one and {@link #deleteBuffer(int)} might be called from any thread.
+     * @param data Mono 16 bits samples.
+     * @param frequency Sampling frequency of the data.
+     * @return The buffer name.
+     */
+    int genBuffer(ShortBuffer data, int frequency);
+
+    /** Delete a buffer that is not queued on any source, this might be called from any thread. */
+    void deleteBuffer(int bufferId);
+
+    int genSource();
+
+    void deleteSource(int sourceId);
+
+    void setSourcePosition(int sourceId, float x, float y, float z);
+
+    void setSourceVolume(int sourceId, float volume);
+
+    /** Set the linear attenuation of the source, the source is no longer audible after this distance. */
+    void setSourceAttenuation(int sourceId, float attenuation);
+
+    boolean isSourcePlaying(int sourceId);
+
+    /** Start playing the queued buffers, from the first one if the source was stopped. */
+    void playSource(int sourceId);
+
+    /** Stop the source, all queued buffers are then considered processed. */
+    void stopSource(int sourceId);
+
+    void queueSourceBuffer(int sourceId, int bufferId);
+
+    /** @return The number of queued buffers that are fully played and can be unqueued. */
+    int getSourceProcessedBuffers(int sourceId);
+
+    /** @return The name of the first processed buffer, that is unqueued. */
+    int unqueueSourceBuffer(int sourceId);
+
+    /** @return The offset, in samples, of the playing position from the start of the buffers queue. */
+    int getSourceSampleOffset(int sourceId);
+
+    /**
+     * Check for errors of the last operations.
+     * @param sectionName The section name to use when logging the error.
+     * @return True if there is an error.
+     */
+    boolean checkErrors(String sectionName);
+
+}
@@ -9,24 +9,30 @@ import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
 import java.util.Objects;
 
-import static org.lwjgl.openal.AL11.*;
-
 /**
  * A streaming buffer abstraction, always mono channel / 16 bits.
  */
 @Environment(EnvType.CLIENT)
 public class AudioStreamingBuffer {
     
+    private final AudioSink sink;
     private int bufferId;
     /** When the buffer should be played. */
     public final long timestamp;
     /** Duration in microseconds. */
     public final long duration;
+    /** Sampling frequency, used to convert sample offsets to durations. */
+    public final int frequency;
+    /** Size of the buffer data, in bytes. */
+    public final int size;
     
-    private AudioStreamingBuffer(int bufferId, long timestamp, long duration) {
+    private AudioStreamingBuffer(AudioSink sink, int bufferId, long timestamp, long duration, int frequency, int size) {
+        this.sink = sink;
         this.bufferId = bufferId;
         this.timestamp = timestamp;
         this.duration = duration;
+        this.frequency = frequency;
+        this.size = size;
     }
     
     public int getBufferId() {
@@ -45,16 +51,16 @@ public class AudioStreamingBuffer {
     
     public void free() {
         this.checkValid();
-        alDeleteBuffers(this.bufferId);
+        this.sink.deleteBuffer(this.bufferId);
         this.bufferId = 0;
     }
     
-    public static AudioStreamingBuffer fromFrame(ShortBuffer tempBuffer, Frame frame) {
+    public static AudioStreamingBuffer fromFrame(AudioSink sink, ShortBuffer tempBuffer, Frame frame) {
         Objects.requireNonNull(frame.samples, "given frame has no audio sample");
-        return fromRawData(tempBuffer, frame.samples[0], frame.audioChannels, frame.sampleRate, frame.timestamp);
+        return fromRawData(sink, tempBuffer, frame.samples[0], frame.audioChannels, frame.sampleRate, frame.timestamp);
     }
     
-    public static AudioStreamingBuffer fromRawData(ShortBuffer tempBuffer, Buffer rawBuffer, int channels, int frequency, long timestamp) {
+    public static AudioStreamingBuffer fromRawData(AudioSink sink, ShortBuffer tempBuffer, Buffer rawBuffer, int channels, int frequency, long timestamp) {
         
         if (channels != 1 && channels != 2) {
             throw new IllegalArgumentException("illegal channels count, only 1 or 2 are allowed");
@@ -99,13 +105,12 @@ public class AudioStreamingBuffer {
             throw new IllegalArgumentException("unsupported sample format");
         }
         
-        int bufferId = alGenBuffers();
-        alBufferData(bufferId, AL_FORMAT_MONO16, tempBuffer, frequency);
+        int bufferId = sink.genBuffer(tempBuffer, frequency);
         
-        AudioStreamingSource.checkErrors("audio buffer data");
+        sink.checkErrors("audio buffer data");
         
         long duration = samples * 1000000L / frequency;
-        return new AudioStreamingBuffer(bufferId, timestamp, duration);
+        return new AudioStreamingBuffer(sink, bufferId, timestamp, duration, frequency, samples * 2);
         
     }
     
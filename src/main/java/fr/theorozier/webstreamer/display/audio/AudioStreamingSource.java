@@ -8,20 +8,20 @@ import net.minecraft.core.Vec3i;
 import java.util.ArrayDeque;
 import java.util.Objects;
 
-import static org.lwjgl.openal.AL11.*;
-
 @Environment(EnvType.CLIENT)
 public class AudioStreamingSource {
 
+    private final AudioSink sink;
     private int sourceId;
 
     private ArrayDeque<AudioStreamingBuffer> queue = new ArrayDeque<>();
+    /** Buffers currently queued on the sink's source, in playing order. */
+    private ArrayDeque<AudioStreamingBuffer> playingQueue = new ArrayDeque<>();
     private long lastBufferTimestamp;
 
-    public AudioStreamingSource() {
-        this.sourceId = alGenSources();
-        alSourcei(this.sourceId, AL_LOOPING, AL_FALSE);
-        alSourcei(this.sourceId, AL_SOURCE_RELATIVE, AL_FALSE);
+    public AudioStreamingSource(AudioSink sink) {
+        this.sink = sink;
+        this.sourceId = sink.genSource();
         this.setVolume(1f);
         this.setAttenuation(50f);
     }
@@ -41,40 +41,78 @@ public class AudioStreamingSource {
         this.queue.forEach(AudioStreamingBuffer::free);
         this.queue.clear();
         this.queue = null;
-        alSourceStop(this.sourceId);
-        alDeleteSources(this.sourceId);
+        this.sink.stopSource(this.sourceId);
+        this.unqueueAndFree();
+        this.playingQueue = null;
+        this.sink.deleteSource(this.sourceId);
         this.sourceId = 0;
     }
 
-    /** Manually stop the source, when doing that all queued buffers are freed and cleared. */
+    /**
+     * Manually stop the source, when doing that all queued buffers are freed and cleared.
+     * The source can then be reused for another stream.
+     */
     public void stop() {
         this.checkValid();
-        alSourceStop(this.sourceId);
+        this.sink.stopSource(this.sourceId);
+        // All buffers are processed once stopped.
+        this.unqueueAndFree();
         this.queue.forEach(AudioStreamingBuffer::free);
         this.queue.clear();
+        this.lastBufferTimestamp = 0;
     }
 
     public void setPosition(Vec3i pos) {
         this.checkValid();
-        alSourcefv(this.sourceId, AL_POSITION, new float[] {(float) pos.getX() + 0.5f, (float) pos.getY() + 0.5f, (float) pos.getZ() + 0.5f});
+        this.sink.setSourcePosition(this.sourceId, (float) pos.getX() + 0.5f, (float) pos.getY() + 0.5f, (float) pos.getZ() + 0.5f);
     }
 
     public void setVolume(float volume) {
         this.checkValid();
-        alSourcef(this.sourceId, AL_GAIN, volume);
+        this.sink.setSourceVolume(this.sourceId, volume);
     }
 
     public void setAttenuation(float attenuation) {
         this.checkValid();
-        alSourcei(this.sourceId, AL_DISTANCE_MODEL, AL_LINEAR_DISTANCE);
-        alSourcef(this.sourceId, AL_MAX_DISTANCE, attenuation);
-        alSourcef(this.sourceId, AL_ROLLOFF_FACTOR, 1.0F);
-        alSourcef(this.sourceId, AL_REFERENCE_DISTANCE, 0.0F);
+        this.sink.setSourceAttenuation(this.sourceId, attenuation);
     }
 
     public boolean isPlaying() {
         this.checkValid();
-        return alGetSourcei(this.sourceId, AL_SOURCE_STATE) == AL_PLAYING;
+        return this.sink.isSourcePlaying(this.sourceId);
+    }
+
+    /**
+     * Get the timestamp of the sample currently being played by this source. This is
+     * derived from the sink's sample offset from the first buffer still queued, processed
+     * or not, and can be used as a master clock for video presentation. This has no side
+     * effect, processed buffers are only freed by {@link #unqueueAndFree()}.
+     * @return The timestamp in microseconds, or -1 if the source is not playing.
+     */
+    public long getPlayingTimestamp() {
+        this.checkValid();
+        if (!this.isPlaying()) {
+            return -1L;
+        }
+        AudioStreamingBuffer firstBuffer = this.playingQueue.peekFirst();
+        if (firstBuffer == null) {
+            return -1L;
+        }
+        int sampleOffset = this.sink.getSourceSampleOffset(this.sourceId);
+        return firstBuffer.timestamp + (long) sampleOffset * 1000000L / firstBuffer.frequency;
+    }
+
+    /** @return The size of buffers queued on this source, played or not, in bytes. */
+    public long getQueuedSize() {
+        this.checkValid();
+        long size = 0;
+        for (AudioStreamingBuffer buffer : this.queue) {
+            size += buffer.size;
+        }
+        for (AudioStreamingBuffer buffer : this.playingQueue) {
+            size += buffer.size;
+        }
+        return size;
     }
 
     public void playFrom(long timestamp) {
@@ -100,28 +138,22 @@ public class AudioStreamingSource {
             return;
         }
 
-        long firstBufferTimestamp = -1L;
-        int buffersCount = this.queue.size();
-
-        int[] buffers = new int[buffersCount];
-        for (int i = 0; i < buffersCount; ++i) {
+        // Buffers are queued one by one, avoiding the allocation of an array of names.
+        while (!this.queue.isEmpty()) {
             AudioStreamingBuffer buffer = this.queue.removeFirst();
-            buffers[i] = buffer.getBufferId();
-            if (firstBufferTimestamp == -1L) {
-                firstBufferTimestamp = buffer.timestamp;
-            }
+            this.sink.queueSourceBuffer(this.sourceId, buffer.getBufferId());
+            this.playingQueue.addLast(buffer);
         }
 
-        alSourceQueueBuffers(this.sourceId, buffers);
-
         if (!playing) {
-            alSourcePlay(this.sourceId);
+            this.sink.playSource(this.sourceId);
         }
 
     }
 
     /**
-     * Queue the given streaming buffer on this source.
+     * Queue the given streaming buffer on this source, it's then owned by this source.
+     * Buffers that are not after the last queued one are freed.
      * @param buffer A non-null streaming buffer.
      */
     public void queueBuffer(AudioStreamingBuffer buffer) {
@@ -131,10 +163,14 @@ public class AudioStreamingSource {
         this.checkValid();
 
         if (buffer.timestamp <= this.lastBufferTimestamp) {
-            WebStreamer.LOGGER.debug(
-                "given {} us, expected more than {} us. This usually occurs on stream restart.",
-                buffer.timestamp, this.lastBufferTimestamp
-            );
+            // Checked first, so timestamps are not boxed on each tick.
+            if (WebStreamer.LOGGER.isDebugEnabled()) {
+                WebStreamer.LOGGER.debug(
+                    "given {} us, expected more than {} us. This usually occurs on stream restart.",
+                    buffer.timestamp, this.lastBufferTimestamp
+                );
+            }
+            buffer.free();
             return;
         }
 
@@ -147,14 +183,15 @@ public class AudioStreamingSource {
      * Unqueue processed buffers and free them.
      */
     public void unqueueAndFree() {
-        int numProcessed = alGetSourcei(this.sourceId, AL_BUFFERS_PROCESSED);
-        if (numProcessed > 0) {
-            int[] buffers = new int[numProcessed];
-            alSourceUnqueueBuffers(this.sourceId, buffers);
-            if (!checkErrors("audio unqueue buffers")) {
-                alDeleteBuffers(buffers);
-                checkErrors("audio delete buffers");
+        int numProcessed = this.sink.getSourceProcessedBuffers(this.sourceId);
+        for (int i = 0; i < numProcessed; ++i) {
+            this.sink.unqueueSourceBuffer(this.sourceId);
+            if (this.sink.checkErrors("audio unqueue buffers")) {
+                break;
             }
+            // Buffers are unqueued in the same order they were queued.
+            this.playingQueue.removeFirst().free();
+            this.sink.checkErrors("audio delete buffers");
         }
     }
 
@@ -170,30 +207,4 @@ public class AudioStreamingSource {
         }
     }
 
-    /**
-     * Check for OpenAL errors.
-     * @param sectionName The section name to use when logging the error.
-     * @return True if there is an OpenAL error.
-     */
-    static boolean checkErrors(String sectionName) {
-        int i = alGetError();
-        if (i != 0) {
-            WebStreamer.LOGGER.error("{}: {}", sectionName, getErrorMessage(i));
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    static String getErrorMessage(int errorCode) {
-        return switch (errorCode) {
-            case AL_INVALID_NAME -> "invalid name.";
-            case AL_INVALID_OPERATION -> "invalid operation.";
-            case AL_INVALID_ENUM -> "illegal enum.";
-            case AL_INVALID_VALUE -> "invalid value.";
-            case AL_OUT_OF_MEMORY -> "unable to allocate memory.";
-            default -> "an unrecognized error occurred.";
-        };
-    }
-
 }
@@ -0,0 +1,247 @@
+package fr.theorozier.webstreamer.display.audio;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>An in-memory audio sink that doesn't need any audio device, buffers are consumed
+ * in real time according to the given clock, as OpenAL would do. This sink records
+ * played durations and underruns, it is intended for testing and benchmarking the
+ * audio pipeline.</p>
+ * <p>This class is thread safe.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class LoopbackAudioSink implements AudioSink {
+
+    private final LongSupplier clock;
+
+    private final Int2ObjectOpenHashMap<LoopbackBuffer> buffers = new Int2ObjectOpenHashMap<>();
+    private final Int2ObjectOpenHashMap<LoopbackSource> sources = new Int2ObjectOpenHashMap<>();
+    private int nextId = 1;
+
+    /** Total number of buffers generated. */
+    private long generatedBuffers;
+    /** Total number of samples played by all sources. */
+    private long playedSamples;
+    /** Total duration played by all sources, in nanoseconds. */
+    private long playedNanos;
+    /** Timestamps (from the clock) of all underruns. */
+    private final List<Long> underruns = new ArrayList<>();
+
+    /**
+     * Construct a loopback sink with a custom clock, useful for deterministic tests.
+     * @param clock A monotonic clock giving time in nanoseconds.
+     */
+    public LoopbackAudioSink(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    public LoopbackAudioSink() {
+        this(System::nanoTime);
+    }
+
+    private LoopbackBuffer getBuffer(int bufferId) {
+        LoopbackBuffer buffer = this.buffers.get(bufferId);
+        if (buffer == null) {
+            throw new IllegalArgumentException("invalid buffer name: " + bufferId);
+        }
+        return buffer;
+    }
+
+    private LoopbackSource getSource(int sourceId) {
+        LoopbackSource source = this.sources.get(sourceId);
+        if (source == null) {
+            throw new IllegalArgumentException("invalid source name: " + sourceId);
+        }
+        source.update(this.clock.getAsLong());
+        return source;
+    }
+
+    @Override
+    public synchronized int genBuffer(ShortBuffer data, int frequency) {
+        int bufferId = this.nextId++;
+        this.buffers.put(bufferId, new LoopbackBuffer(bufferId, data.remaining(), frequency));
+        this.generatedBuffers++;
+        return bufferId;
+    }
+
+    @Override
+    public synchronized void deleteBuffer(int bufferId) {
+        if (this.buffers.remove(bufferId) == null) {
+            throw new IllegalArgumentException("invalid buffer name: " + bufferId);
+        }
+    }
+
+    @Override
+    public synchronized int genSource() {
+        int sourceId = this.nextId++;
+        this.sources.put(sourceId, new LoopbackSource());
+        return sourceId;
+    }
+
+    @Override
+    public synchronized void deleteSource(int sourceId) {
+        if (this.sources.remove(sourceId) == null) {
+            throw new IllegalArgumentException("invalid source name: " + sourceId);
+        }
+    }
+
+    @Override
+    public synchronized void setSourcePosition(int sourceId, float x, float y, float z) {
+        this.getSource(sourceId);
+    }
+
+    @Override
+    public synchronized void setSourceVolume(int sourceId, float volume) {
+        this.getSource(sourceId);
+    }
+
+    @Override
+    public synchronized void setSourceAttenuation(int sourceId, float attenuation) {
+        this.getSource(sourceId);
+    }
+
+    @Override
+    public synchronized boolean isSourcePlaying(int sourceId) {
+        return this.getSource(sourceId).playing;
+    }
+
+    @Override
+    public synchronized void playSource(int sourceId) {
+        LoopbackSource source = this.getSource(sourceId);
+        if (!source.playing) {
+            // Like OpenAL, restart from the first queued buffer.
+            source.playing = !source.queue.isEmpty();
+            source.processed = 0;
+            source.offsetNanos = 0;
+            source.lastUpdate = this.clock.getAsLong();
+        }
+    }
+
+    @Override
+    public synchronized void stopSource(int sourceId) {
+        LoopbackSource source = this.getSource(sourceId);
+        source.playing = false;
+        source.processed = source.queue.size();
+        source.offsetNanos = 0;
+    }
+
+    @Override
+    public synchronized void queueSourceBuffer(int sourceId, int bufferId) {
+        this.getSource(sourceId).queue.add(this.getBuffer(bufferId));
+    }
+
+    @Override
+    public synchronized int getSourceProcessedBuffers(int sourceId) {
+        return this.getSource(sourceId).processed;
+    }
+
+    @Override
+    public synchronized int unqueueSourceBuffer(int sourceId) {
+        LoopbackSource source = this.getSource(sourceId);
+        if (source.processed == 0) {
+            throw new IllegalStateException("cannot unqueue unprocessed buffers");
+        }
+        source.processed--;
+        return source.queue.remove(0).id;
+    }
+
+    @Override
+    public synchronized int getSourceSampleOffset(int sourceId) {
+        LoopbackSource source = this.getSource(sourceId);
+        if (!source.playing) {
+            return 0;
+        }
+        long samples = 0;
+        for (int i = 0; i < source.processed; ++i) {
+            samples += source.queue.get(i).samples;
+        }
+        LoopbackBuffer current = source.queue.get(source.processed);
+        samples += source.offsetNanos * current.frequency / 1000000000L;
+        return (int) samples;
+    }
+
+    @Override
+    public boolean checkErrors(String sectionName) {
+        return false;
+    }
+
+    public synchronized long getGeneratedBuffers() {
+        return this.generatedBuffers;
+    }
+
+    public synchronized long getPlayedSamples() {
+        return this.playedSamples;
+    }
+
+    /** @return Total duration played by all sources, in nanoseconds. */
+    public synchronized long getPlayedNanos() {
+        return this.playedNanos;
+    }
+
+    /** @return The clock timestamps of all underruns, when a playing source has no more buffer. */
+    public synchronized List<Long> getUnderruns() {
+        return new ArrayList<>(this.underruns);
+    }
+
+    private record LoopbackBuffer(int id, int samples, int frequency) {
+
+        private long durationNanos() {
+            return this.samples * 1000000000L / this.frequency;
+        }
+
+    }
+
+    private class LoopbackSource {
+
+        private final List<LoopbackBuffer> queue = new ArrayList<>();
+        private boolean playing;
+        /** Number of processed buffers at the start of the queue. */
+        private int processed;
+        /** Playing offset within the current buffer, in nanoseconds. */
+        private long offsetNanos;
+        private long lastUpdate;
+
+        /** Consume buffers according to the time elapsed since the last update. */
+        private void update(long now) {
+
+            if (!this.playing) {
+                return;
+            }
+
+            long remaining = now - this.lastUpdate;
+            this.lastUpdate = now;
+
+            while (remaining > 0 && this.processed < this.queue.size()) {
+                LoopbackBuffer current = this.queue.get(this.processed);
+                long left = current.durationNanos() - this.offsetNanos;
+                long played = Math.min(left, remaining);
+                playedNanos += played;
+                playedSamples += played * current.frequency / 1000000000L;
+                if (remaining >= left) {
+                    this.processed++;
+                    this.offsetNanos = 0;
+                } else {
+                    this.offsetNanos += remaining;
+                }
+                remaining -= played;
+            }
+
+            if (this.processed >= this.queue.size()) {
+                // No more buffer to play, this is an underrun and OpenAL would stop the source.
+                this.playing = false;
+                this.offsetNanos = 0;
+                underruns.add(now - remaining);
+            }
+
+        }
+
+    }
+
+}
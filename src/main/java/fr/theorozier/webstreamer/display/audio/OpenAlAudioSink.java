@@ -0,0 +1,121 @@
+package fr.theorozier.webstreamer.display.audio;
+
+import fr.theorozier.webstreamer.WebStreamer;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.nio.ShortBuffer;
+
+import static org.lwjgl.openal.AL11.*;
+
+/**
+ * Audio sink backed by the OpenAL context of the game's sound engine.
+ */
+@Environment(EnvType.CLIENT)
+public class OpenAlAudioSink implements AudioSink {
+
+    public static final OpenAlAudioSink INSTANCE = new OpenAlAudioSink();
+
+    private OpenAlAudioSink() { }
+
+    @Override
+    public int genBuffer(ShortBuffer data, int frequency) {
+        int bufferId = alGenBuffers();
+        alBufferData(bufferId, AL_FORMAT_MONO16, data, frequency);
+        return bufferId;
+    }
+
+    @Override
+    public void deleteBuffer(int bufferId) {
+        alDeleteBuffers(bufferId);
+    }
+
+    @Override
+    public int genSource() {
+        int sourceId = alGenSources();
+        alSourcei(sourceId, AL_LOOPING, AL_FALSE);
+        alSourcei(sourceId, AL_SOURCE_RELATIVE, AL_FALSE);
+        return sourceId;
+    }
+
+    @Override
+    public void deleteSource(int sourceId) {
+        alDeleteSources(sourceId);
+    }
+
+    @Override
+    public void setSourcePosition(int sourceId, float x, float y, float z) {
+        alSource3f(sourceId, AL_POSITION, x, y, z);
+    }
+
+    @Override
+    public void setSourceVolume(int sourceId, float volume) {
+        alSourcef(sourceId, AL_GAIN, volume);
+    }
+
+    @Override
+    public void setSourceAttenuation(int sourceId, float attenuation) {
+        alSourcei(sourceId, AL_DISTANCE_MODEL, AL_LINEAR_DISTANCE);
+        alSourcef(sourceId, AL_MAX_DISTANCE, attenuation);
+        alSourcef(sourceId, AL_ROLLOFF_FACTOR, 1.0F);
+        alSourcef(sourceId, AL_REFERENCE_DISTANCE, 0.0F);
+    }
+
+    @Override
+    public boolean isSourcePlaying(int sourceId) {
+        return alGetSourcei(sourceId, AL_SOURCE_STATE) == AL_PLAYING;
+    }
+
+    @Override
+    public void playSource(int sourceId) {
+        alSourcePlay(sourceId);
+    }
+
+    @Override
+    public void stopSource(int sourceId) {
+        alSourceStop(sourceId);
+    }
+
+    @Override
+    public void queueSourceBuffer(int sourceId, int bufferId) {
+        alSourceQueueBuffers(sourceId, bufferId);
+    }
+
+    @Override
+    public int getSourceProcessedBuffers(int sourceId) {
+        return alGetSourcei(sourceId, AL_BUFFERS_PROCESSED);
+    }
+
+    @Override
+    public int unqueueSourceBuffer(int sourceId) {
+        return alSourceUnqueueBuffers(sourceId);
+    }
+
+    @Override
+    public int getSourceSampleOffset(int sourceId) {
+        return alGetSourcei(sourceId, AL_SAMPLE_OFFSET);
+    }
+
+    @Override
+    public boolean checkErrors(String sectionName) {
+        int i = alGetError();
+        if (i != 0) {
+            WebStreamer.LOGGER.error("{}: {}", sectionName, getErrorMessage(i));
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    static String getErrorMessage(int errorCode) {
+        return switch (errorCode) {
+            case AL_INVALID_NAME -> "invalid name.";
+            case AL_INVALID_OPERATION -> "invalid operation.";
+            case AL_INVALID_ENUM -> "illegal enum.";
+            case AL_INVALID_VALUE -> "invalid value.";
+            case AL_OUT_OF_MEMORY -> "unable to allocate memory.";
+            default -> "an unrecognized error occurred.";
+        };
+    }
+
+}
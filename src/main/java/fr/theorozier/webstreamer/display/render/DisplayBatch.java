@@ -0,0 +1,143 @@
+package fr.theorozier.webstreamer.display.render;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.BufferBuilder;
+import com.mojang.blaze3d.vertex.DefaultVertexFormat;
+import com.mojang.blaze3d.vertex.DefaultedVertexConsumer;
+import com.mojang.blaze3d.vertex.VertexBuffer;
+import com.mojang.blaze3d.vertex.VertexConsumer;
+import com.mojang.blaze3d.vertex.VertexFormat;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.minecraft.client.renderer.GameRenderer;
+import org.jetbrains.annotations.NotNull;
+import org.lwjgl.opengl.GL11;
+
+import java.util.Arrays;
+
+/**
+ * <p>Batch of the quads of all displays sharing a layer, collected during the frame and
+ * drawn at once from a persistent vertex buffer, instead of flushing the layer's render
+ * type for each display.</p>
+ * <p>As a vertex consumer, only position and texture coordinates are kept, other
+ * attributes are ignored. <b>Must be used from render thread.</b></p>
+ */
+@Environment(EnvType.CLIENT)
+public class DisplayBatch extends DefaultedVertexConsumer {
+
+    /** Number of floats per vertex, position and texture coordinates. */
+    private static final int VERTEX_SIZE = 5;
+
+    /** Collected vertices, already transformed by their pose. */
+    private float[] vertices = new float[4 * VERTEX_SIZE];
+    /** Number of floats of complete vertices. */
+    private int size;
+    private VertexBuffer vertexBuffer;
+
+    @NotNull
+    @Override
+    public VertexConsumer vertex(double x, double y, double z) {
+        if (this.size + VERTEX_SIZE > this.vertices.length) {
+            this.vertices = Arrays.copyOf(this.vertices, this.vertices.length * 2);
+        }
+        this.vertices[this.size] = (float) x;
+        this.vertices[this.size + 1] = (float) y;
+        this.vertices[this.size + 2] = (float) z;
+        return this;
+    }
+
+    @NotNull
+    @Override
+    public VertexConsumer uv(float u, float v) {
+        this.vertices[this.size + 3] = u;
+        this.vertices[this.size + 4] = v;
+        return this;
+    }
+
+    @Override
+    public void endVertex() {
+        this.size += VERTEX_SIZE;
+    }
+
+    @NotNull
+    @Override
+    public VertexConsumer color(int red, int green, int blue, int alpha) {
+        return this;
+    }
+
+    @NotNull
+    @Override
+    public VertexConsumer overlayCoords(int u, int v) {
+        return this;
+    }
+
+    @NotNull
+    @Override
+    public VertexConsumer uv2(int u, int v) {
+        return this;
+    }
+
+    @NotNull
+    @Override
+    public VertexConsumer normal(float x, float y, float z) {
+        return this;
+    }
+
+    /** @return True if no quad has been collected since the last draw. */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /** Discard the collected quads, if they have not been drawn. */
+    public void clear() {
+        this.size = 0;
+    }
+
+    /**
+     * Draw all collected quads in one call, with the given texture, and clear them.
+     * @param builder The buffer builder used to upload the quads, shared between batches.
+     * @param textureId The texture of the layer.
+     */
+    public void draw(BufferBuilder builder, int textureId) {
+
+        if (this.size == 0) {
+            return;
+        }
+
+        builder.begin(VertexFormat.Mode.QUADS, DefaultVertexFormat.POSITION_TEX);
+        for (int i = 0; i < this.size; i += VERTEX_SIZE) {
+            builder.vertex(this.vertices[i], this.vertices[i + 1], this.vertices[i + 2])
+                .uv(this.vertices[i + 3], this.vertices[i + 4])
+                .endVertex();
+        }
+        this.size = 0;
+
+        if (this.vertexBuffer == null) {
+            this.vertexBuffer = new VertexBuffer();
+        }
+
+        // Same state as the layer's render type.
+        RenderSystem.enableDepthTest();
+        RenderSystem.depthFunc(GL11.GL_LEQUAL);
+        RenderSystem.enableTexture();
+        RenderSystem.setShaderTexture(0, textureId);
+
+        this.vertexBuffer.bind();
+        this.vertexBuffer.upload(builder.end());
+        this.vertexBuffer.drawWithShader(RenderSystem.getModelViewMatrix(), RenderSystem.getProjectionMatrix(), GameRenderer.getPositionTexShader());
+        VertexBuffer.unbind();
+
+        RenderSystem.disableDepthTest();
+
+    }
+
+    /** Free the vertex buffer, the batch can still be used after. */
+    public void free() {
+        if (this.vertexBuffer != null) {
+            this.vertexBuffer.close();
+            this.vertexBuffer = null;
+        }
+        this.size = 0;
+    }
+
+}
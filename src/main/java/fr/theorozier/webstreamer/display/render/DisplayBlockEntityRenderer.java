@@ -5,16 +5,13 @@ import com.mojang.blaze3d.vertex.VertexConsumer;
 import com.mojang.math.Matrix4f;
 import com.mojang.math.Vector3f;
 import fr.theorozier.webstreamer.WebStreamerClient;
-import fr.theorozier.webstreamer.WebStreamer;
 import fr.theorozier.webstreamer.display.DisplayBlock;
 import fr.theorozier.webstreamer.display.DisplayBlockEntity;
 import fr.theorozier.webstreamer.display.url.DisplayUrl;
 import fr.theorozier.webstreamer.mixin.LevelRendererInvoker;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
-import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.Font;
-import net.minecraft.client.renderer.GameRenderer;
 import net.minecraft.client.renderer.MultiBufferSource;
 import net.minecraft.client.renderer.RenderType;
 import net.minecraft.client.renderer.blockentity.BlockEntityRenderer;
@@ -22,16 +19,12 @@ import net.minecraft.client.renderer.blockentity.BlockEntityRendererProvider;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.network.chat.Component;
-import net.minecraft.world.entity.player.Player;
-import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.level.block.state.properties.BlockStateProperties;
 import net.minecraft.world.phys.AABB;
 import net.minecraft.world.phys.Vec3;
 import net.minecraft.world.phys.shapes.VoxelShape;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.stream.StreamSupport;
-
 @Environment(EnvType.CLIENT)
 public class DisplayBlockEntityRenderer implements BlockEntityRenderer<DisplayBlockEntity> {
 
@@ -39,7 +32,11 @@ public class DisplayBlockEntityRenderer implements BlockEntityRenderer<DisplayBl
     private static final Component UNKNOWN_FORMAT_TEXT = Component.translatable("gui.webstreamer.display.status.unknownFormat");
     private static final Component NO_URL_TEXT = Component.translatable("gui.webstreamer.display.status.noUrl");
 
-    private final GameRenderer gameRenderer = Minecraft.getInstance().gameRenderer;
+    /** True to collect quads in the batch of each layer, drawn once per frame, instead of using its render type. */
+    private static final boolean BATCHED_RENDERING = true;
+    /** Margin in blocks around the view distance, where displays prewarm their layer before entering view. */
+    private static final double PREWARM_MARGIN = 16.0;
+
     private final Font textRenderer;
 
     @SuppressWarnings("unused")
@@ -53,34 +50,32 @@ public class DisplayBlockEntityRenderer implements BlockEntityRenderer<DisplayBl
 
         DisplayRenderData renderData = (DisplayRenderData) entity.getRenderData();
         DisplayLayerManager layerManager = WebStreamerClient.DISPLAY_LAYERS;
+        DisplayRenderContext renderContext = layerManager.getRenderContext();
 
-        DisplayUrl url = renderData.getUrl(layerManager.getResources().getExecutor());
-
-        Player player = Minecraft.getInstance().player;
+        DisplayUrl url = renderData.getUrl(layerManager.getResources().getIoExecutor());
 
         Component statusText = null;
 
-        if (player != null) {
-
-            boolean hasDisplayEquipped = StreamSupport.stream(player.getAllSlots().spliterator(), false)
-                    .map(ItemStack::getItem)
-                    .anyMatch(WebStreamer.DISPLAY_ITEM::equals);
-
-            if (hasDisplayEquipped) {
+        if (renderContext.isDisplayEquipped()) {
 
-                VoxelShape displayShape = entity.getBlockState().getShape(entity.getLevel(), entity.getBlockPos());
-                LevelRendererInvoker.invokeRenderShape(matrices, vertexConsumers.getBuffer(RenderType.lines()), displayShape, 0, 0, 0, 235 / 255f, 168 / 255f, 0f, 1f);
+            VoxelShape displayShape = entity.getBlockState().getShape(entity.getLevel(), entity.getBlockPos());
+            LevelRendererInvoker.invokeRenderShape(matrices, vertexConsumers.getBuffer(RenderType.lines()), displayShape, 0, 0, 0, 235 / 255f, 168 / 255f, 0f, 1f);
 
-                statusText = Component.literal(entity.getSource().getStatus());
-
-            }
+            statusText = Component.literal(entity.getSource().getStatus());
 
         }
 
         if (url != null) {
             try {
 
-                DisplayLayer layer = layerManager.getLayerForUrl(url);
+                BlockPos pos = entity.getBlockPos();
+                int dist = pos.distManhattan(renderContext.getCameraBlockPos());
+                float area = entity.getWidth() * entity.getHeight();
+
+                // Culled displays request their layer with no importance, so they never evict
+                // another layer, they only use an existing one or a free slot.
+                boolean visible = layerManager.getCulling().isVisible(entity, renderData, renderContext);
+                DisplayLayer layer = layerManager.getLayerForUrl(url, visible ? DisplayLayer.getApparentSize(dist, area) : 0f);
 
                 if (layer.isLost()) {
                     // Each time a display get here and the layer is lost, and then we request
@@ -90,15 +85,20 @@ public class DisplayBlockEntityRenderer implements BlockEntityRenderer<DisplayBl
                     return;
                 }
 
+                float audioDistance = entity.getAudioDistance();
+                float audioVolume = entity.getAudioVolume();
+
+                if (!visible) {
+                    // Culled displays keep their layer and can still be heard, but they are not drawn.
+                    layer.pushCulledDisplay(dist);
+                    layer.pushAudioSource(pos, dist, audioDistance, audioVolume);
+                    return;
+                }
+
                 matrices.pushPose();
                 Matrix4f positionMatrix = matrices.last().pose();
 
-                VertexConsumer buffer = vertexConsumers.getBuffer(layer.getRenderLayer());
-
-                BlockPos pos = entity.getBlockPos();
-                float audioDistance = entity.getAudioDistance();
-                float audioVolume = entity.getAudioVolume();
-                layer.pushAudioSource(pos, pos.distManhattan(this.gameRenderer.getMainCamera().getBlockPosition()), audioDistance, audioVolume);
+                VertexConsumer buffer = BATCHED_RENDERING ? layer.getBatch() : vertexConsumers.getBuffer(layer.getRenderLayer());
 
                 // Width/Height start coords
                 float ws = renderData.getWidthOffset();
@@ -107,7 +107,13 @@ public class DisplayBlockEntityRenderer implements BlockEntityRenderer<DisplayBl
                 float we = ws + entity.getWidth();
                 float he = hs + entity.getHeight();
 
-                switch (entity.getBlockState().getValue(BlockStateProperties.HORIZONTAL_FACING)) {
+                Direction facing = entity.getBlockState().getValue(BlockStateProperties.HORIZONTAL_FACING);
+                float eyeDist = getEyeDistance(renderContext.getCameraPosition(), pos, facing, (ws + we) / 2f, (hs + he) / 2f);
+
+                layer.pushDisplay(dist, area, eyeDist);
+                layer.pushAudioSource(pos, dist, audioDistance, audioVolume);
+
+                switch (facing) {
                     case NORTH -> {
                         buffer.vertex(positionMatrix, we, hs, 0.95f).uv(0, 1).endVertex();
                         buffer.vertex(positionMatrix, ws, hs, 0.95f).uv(1, 1).endVertex();
@@ -183,10 +189,42 @@ public class DisplayBlockEntityRenderer implements BlockEntityRenderer<DisplayBl
         return true;
     }
 
+    /**
+     * Displays are rendered within the view distance. Just outside of it, in the prewarm
+     * zone, they are not rendered but their layer is prewarmed, so it's already playing
+     * when entering view.
+     */
     @Override
     public boolean shouldRender(DisplayBlockEntity blockEntity, Vec3 cameraPos) {
-        final Direction.Axis facing = blockEntity.getBlockState().getValue(DisplayBlock.HORIZONTAL_FACING).getAxis();
         final double distance = getViewDistance();
+        if (isInRange(blockEntity, cameraPos, distance)) {
+            return true;
+        } else if (isInRange(blockEntity, cameraPos, distance + PREWARM_MARGIN)) {
+            this.prewarm(blockEntity);
+        }
+        return false;
+    }
+
+    /**
+     * @param u The horizontal coordinate of the display center, along the display.
+     * @param v The vertical coordinate of the display center, relative to the block.
+     * @return The euclidean distance between the camera and the center of the display quad.
+     */
+    private static float getEyeDistance(Vec3 cameraPos, BlockPos pos, Direction facing, float u, float v) {
+        double x = pos.getX();
+        double y = pos.getY() + v;
+        double z = pos.getZ();
+        switch (facing) {
+            case NORTH -> { x += u; z += 0.95; }
+            case SOUTH -> { x += u; z += 0.05; }
+            case EAST -> { x += 0.05; z += u; }
+            case WEST -> { x += 0.95; z += u; }
+        }
+        return (float) Math.sqrt(cameraPos.distanceToSqr(x, y, z));
+    }
+
+    private static boolean isInRange(DisplayBlockEntity blockEntity, Vec3 cameraPos, double distance) {
+        final Direction.Axis facing = blockEntity.getBlockState().getValue(DisplayBlock.HORIZONTAL_FACING).getAxis();
         return AABB.ofSize(
             Vec3.atCenterOf(blockEntity.getBlockPos()),
             facing.choose(0, 1, 1) * blockEntity.getWidth() + 2 * distance,
@@ -194,4 +232,15 @@ public class DisplayBlockEntityRenderer implements BlockEntityRenderer<DisplayBl
             facing.choose(1, 1, 0) * blockEntity.getWidth() + 2 * distance
         ).contains(cameraPos);
     }
+
+    /** Prewarm the layer of a display in the prewarm zone, if its URL is already known. */
+    private void prewarm(DisplayBlockEntity blockEntity) {
+        DisplayRenderData renderData = (DisplayRenderData) blockEntity.getRenderData();
+        DisplayLayerManager layerManager = WebStreamerClient.DISPLAY_LAYERS;
+        DisplayUrl url = renderData.getUrl(layerManager.getResources().getIoExecutor());
+        if (url != null) {
+            int dist = blockEntity.getBlockPos().distManhattan(layerManager.getRenderContext().getCameraBlockPos());
+            layerManager.prewarmLayer(url, dist);
+        }
+    }
 }
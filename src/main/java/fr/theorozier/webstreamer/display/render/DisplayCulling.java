@@ -0,0 +1,104 @@
+package fr.theorozier.webstreamer.display.render;
+
+import fr.theorozier.webstreamer.display.DisplayBlock;
+import fr.theorozier.webstreamer.display.DisplayBlockEntity;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.minecraft.client.Camera;
+import net.minecraft.client.renderer.culling.Frustum;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.world.level.ClipContext;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.AABB;
+import net.minecraft.world.phys.HitResult;
+import net.minecraft.world.phys.Vec3;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>Visibility test of displays, against the camera frustum and then against blocks
+ * occluding it. The occlusion is tested by ray casting from the camera to a few points
+ * of the display, this is done at a lower rate and cached in the display's render
+ * data.</p>
+ * <p><b>Must be used from render thread.</b></p>
+ */
+@Environment(EnvType.CLIENT)
+public class DisplayCulling {
+
+    /** Interval of occlusion tests for each display. */
+    private static final long OCCLUSION_CHECK_INTERVAL = 250000000L; // 0.25 seconds
+    /** Maximum distance between a ray hit and its target point for the point to be visible. */
+    private static final double OCCLUSION_HIT_MARGIN = 1.0;
+
+    /**
+     * Test if a display is visible by the camera.
+     * @param display The display block entity.
+     * @param renderData The render data of the display, caching the occlusion test.
+     * @param context The render context of the frame, with its camera and frustum.
+     * @return True if the display is visible.
+     */
+    public boolean isVisible(DisplayBlockEntity display, DisplayRenderData renderData, DisplayRenderContext context) {
+
+        final Direction.Axis facing = display.getBlockState().getValue(DisplayBlock.HORIZONTAL_FACING).getAxis();
+        AABB box = getDisplayBox(display, renderData, facing);
+        Frustum frustum = context.getFrustum();
+        if (frustum != null && !frustum.isVisible(box)) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        if (now - renderData.occlusionCheckTime >= OCCLUSION_CHECK_INTERVAL) {
+            renderData.occluded = isOccluded(display.getLevel(), context.getCamera(), box, facing);
+            renderData.occlusionCheckTime = now;
+        }
+
+        return !renderData.occluded;
+
+    }
+
+    /** @return The box of the display's surface, one block thick along its facing axis. */
+    private static AABB getDisplayBox(DisplayBlockEntity display, DisplayRenderData renderData, Direction.Axis facing) {
+        BlockPos pos = display.getBlockPos();
+        float ws = renderData.getWidthOffset();
+        float hs = renderData.getHeightOffset();
+        float we = ws + display.getWidth();
+        float he = hs + display.getHeight();
+        if (facing == Direction.Axis.Z) {
+            return new AABB(pos.getX() + ws, pos.getY() + hs, pos.getZ(), pos.getX() + we, pos.getY() + he, pos.getZ() + 1);
+        } else {
+            return new AABB(pos.getX(), pos.getY() + hs, pos.getZ() + ws, pos.getX() + 1, pos.getY() + he, pos.getZ() + we);
+        }
+    }
+
+    /**
+     * Ray cast from the camera to the center of the display and to points near its corners,
+     * the display is occluded if all rays are blocked before reaching their point.
+     */
+    private static boolean isOccluded(@Nullable Level level, Camera camera, AABB box, Direction.Axis facing) {
+
+        if (level == null || camera.getEntity() == null) {
+            return false;
+        }
+
+        Vec3 center = box.getCenter();
+        // Points stay in the plane of the display, at 80% of its width and height.
+        double hw = (facing == Direction.Axis.Z ? box.getXsize() : box.getZsize()) * 0.4;
+        double hh = box.getYsize() * 0.4;
+        double hx = facing == Direction.Axis.Z ? hw : 0;
+        double hz = facing == Direction.Axis.Z ? 0 : hw;
+
+        return !isPointVisible(level, camera, center)
+            && !isPointVisible(level, camera, center.add(-hx, -hh, -hz))
+            && !isPointVisible(level, camera, center.add(hx, -hh, hz))
+            && !isPointVisible(level, camera, center.add(-hx, hh, -hz))
+            && !isPointVisible(level, camera, center.add(hx, hh, hz));
+
+    }
+
+    private static boolean isPointVisible(Level level, Camera camera, Vec3 point) {
+        // Visual shapes are used, so transparent blocks such as glass don't occlude.
+        HitResult hit = level.clip(new ClipContext(camera.getPosition(), point, ClipContext.Block.VISUAL, ClipContext.Fluid.NONE, camera.getEntity()));
+        return hit.getType() == HitResult.Type.MISS || hit.getLocation().distanceToSqr(point) <= OCCLUSION_HIT_MARGIN * OCCLUSION_HIT_MARGIN;
+    }
+
+}
@@ -1,14 +1,17 @@
 package fr.theorozier.webstreamer.display.render;
 
 import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.BufferBuilder;
 import com.mojang.blaze3d.vertex.DefaultVertexFormat;
 import com.mojang.blaze3d.vertex.VertexFormat;
 import fr.theorozier.webstreamer.WebStreamer;
+import fr.theorozier.webstreamer.display.audio.AudioStreamingSource;
 import fr.theorozier.webstreamer.display.url.DisplayUrl;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.client.renderer.RenderType;
 import net.minecraft.core.Vec3i;
+import org.jetbrains.annotations.Nullable;
 import org.lwjgl.opengl.GL11;
 
 @Environment(EnvType.CLIENT)
@@ -16,22 +19,69 @@ public abstract class DisplayLayer {
 
     /** The timeout for a layer to be considered unused */
     protected static final long LAYER_UNUSED_TIMEOUT = 15L * 1000000000L;
+    /** The delay without being rendered for a layer to lose its importance, and be evicted first. */
+    protected static final long LAYER_HIDDEN_DELAY = 1000000000L;
 
     // Common //
-    protected final DisplayUrl url;
+    /**
+     * The URL of this layer, its URI might be refreshed but its id never changes. This is
+     * volatile because it's read by asynchronous request callbacks.
+     */
+    protected volatile DisplayUrl url;
     protected final DisplayLayerResources res;
     protected final DisplayTexture tex;
     protected final DisplayRenderLayer renderLayer;
+    protected final DisplayBatch batch;
+    /** Prefix of log messages, computed once to avoid formatting on each log. */
+    private final String logPrefix;
 
     // Timing //
     /** Time in nanoseconds (monotonic) of the last use. */
-    protected long lastUse = 0;
+    protected long lastUse;
+
+    // Displays //
+    /**
+     * Manhattan distance between the camera and the nearest display using this layer, in
+     * blocks, as of the last frame. This is volatile because it's read by executors when
+     * prioritizing tasks.
+     */
+    protected volatile float displayDistance = Float.MAX_VALUE;
+    private float pushedDisplayDistance = Float.MAX_VALUE;
+    /** Apparent size of the largest display using this layer, as of the last frame. */
+    protected float apparentSize;
+    private float pushedApparentSize;
+    /**
+     * Apparent size of the largest display using this layer from its euclidean distance to
+     * the camera, as of the last frame, for the level of detail of the texture.
+     */
+    protected float projectedSize;
+    private float pushedProjectedSize;
+    /**
+     * True if at least one display using this layer was visible on the last frame, frames
+     * are not decoded for layers that are neither visible nor audible.
+     */
+    protected boolean visible;
+    private boolean pushedVisible;
+    /**
+     * True if at least one display using this layer was culled on the last frame, such
+     * layer is still in use and might be heard, so it's not evicted as a hidden layer.
+     */
+    private boolean culled;
+    private boolean pushedCulled;
+
+    // Memory //
+    /** True if this layer has been degraded by the manager to reduce its memory usage. */
+    protected boolean degraded;
 
     public DisplayLayer(DisplayUrl url, DisplayLayerResources res) {
         this.url = url;
         this.res = res;
-        this.tex = new DisplayTexture();
+        this.tex = new DisplayTexture(res.getTexturePool());
         this.renderLayer = new DisplayRenderLayer(this);
+        this.batch = new DisplayBatch();
+        this.logPrefix = String.format("[%s:%08X] ", this.getClass().getSimpleName(), this.url.uri().hashCode());
+        // Considered used on creation, so it's not evicted before its first render.
+        this.lastUse = System.nanoTime();
         WebStreamer.LOGGER.info(makeLog("Allocate display layer for {}"), this.url);
     }
 
@@ -39,15 +89,184 @@ public abstract class DisplayLayer {
     protected void free() {
         WebStreamer.LOGGER.info(makeLog("Free display layer for {}"), this.url);
         this.tex.releaseId();
+        this.batch.free();
+    }
+
+    /**
+     * Called when the layer is parked in the standby pool, heavy resources should be
+     * released, but the texture with its last frame and the timeline are kept, so the
+     * layer can be resumed quickly.
+     */
+    protected void suspend() {
+        WebStreamer.LOGGER.info(makeLog("Suspend display layer for {}"), this.url);
+    }
+
+    /** Called when the layer is resumed from the standby pool, before its next tick. */
+    protected void resume() {
+        WebStreamer.LOGGER.info(makeLog("Resume display layer for {}"), this.url);
+        this.lastUse = System.nanoTime();
+    }
+
+    /**
+     * Called when the URI of the stream has been refreshed, such as with a new token,
+     * subsequent requests should use the new URI.
+     * @param url The refreshed URL, with the same id.
+     */
+    protected void setUrl(DisplayUrl url) {
+        WebStreamer.LOGGER.info(makeLog("Refresh display layer URL to {}"), url);
+        this.url = url;
     }
 
     /** Called on each reader tick. */
     protected abstract void tick();
 
+    /**
+     * Called for each visible display using this layer.
+     * @param dist The manhattan distance between the display and the camera.
+     * @param area The area of the display, in square blocks.
+     * @param eyeDist The euclidean distance between the center of the display and the camera.
+     */
+    public void pushDisplay(float dist, float area, float eyeDist) {
+        this.lastUse = System.nanoTime();
+        this.pushedVisible = true;
+        this.pushDistance(dist);
+        float size = getApparentSize(dist, area);
+        if (size > this.pushedApparentSize) {
+            this.pushedApparentSize = size;
+        }
+        float projectedSize = getApparentSize(eyeDist, area);
+        if (projectedSize > this.pushedProjectedSize) {
+            this.pushedProjectedSize = projectedSize;
+        }
+    }
+
+    /**
+     * Called for each hidden display using this layer, either in the prewarm zone just
+     * outside the view distance, or culled because it's out of the frustum or occluded.
+     * This keeps the layer in use and gives its distance for prioritizing requests, but
+     * it doesn't make the layer more important nor visible.
+     * @param dist The manhattan distance between the display and the camera.
+     */
+    public void pushHiddenDisplay(float dist) {
+        this.pushDistance(dist);
+        this.lastUse = System.nanoTime();
+    }
+
+    /**
+     * Called for each display using this layer that is in view distance but culled, this
+     * is a hidden display that still needs its layer, see {@link #isCulled()}.
+     * @param dist The manhattan distance between the display and the camera.
+     */
+    public void pushCulledDisplay(float dist) {
+        this.pushHiddenDisplay(dist);
+        this.pushedCulled = true;
+    }
+
+    private void pushDistance(float dist) {
+        if (dist < this.pushedDisplayDistance) {
+            this.pushedDisplayDistance = dist;
+        }
+    }
+
+    /** Called by the manager before each tick, to update the distance, sizes and visibility from pushed ones. */
+    void updateDisplays() {
+        this.displayDistance = this.pushedDisplayDistance;
+        this.apparentSize = this.pushedApparentSize;
+        this.projectedSize = this.pushedProjectedSize;
+        this.visible = this.pushedVisible;
+        this.culled = this.pushedCulled;
+        this.pushedDisplayDistance = Float.MAX_VALUE;
+        this.pushedApparentSize = 0f;
+        this.pushedProjectedSize = 0f;
+        this.pushedVisible = false;
+        this.pushedCulled = false;
+    }
+
+    /** @return True if at least one display using this layer was culled on the last frame. */
+    public boolean isCulled() {
+        return this.culled;
+    }
+
+    /**
+     * Get the importance of this layer, used to choose which layer to evict when the layer
+     * limit is reached. This is the apparent size of its largest display, or zero if the
+     * layer has not been rendered recently.
+     * @param now The reference timestamp (monotonic nanoseconds from {@link System#nanoTime()}).
+     * @return The importance, higher is more important.
+     */
+    public float getImportance(long now) {
+        if (now - this.lastUse >= LAYER_HIDDEN_DELAY) {
+            return 0f;
+        }
+        return Math.max(this.apparentSize, this.pushedApparentSize);
+    }
+
+    /**
+     * Compute the apparent size of a display, that is proportional to its size on screen.
+     * With the manhattan distance, it's only an estimate used to prioritize layers, the
+     * euclidean distance gives the actual projected size.
+     * @param dist The distance between the display and the camera.
+     * @param area The area of the display, in square blocks.
+     * @return The apparent size.
+     */
+    public static float getApparentSize(float dist, float area) {
+        float clampedDist = Math.max(1f, dist);
+        return area / (clampedDist * clampedDist);
+    }
+
+    /**
+     * @return An estimation of the memory used by this layer, in bytes, including its
+     * texture and any decoded or cached media.
+     */
+    public long getMemorySize() {
+        return this.tex.getMemorySize();
+    }
+
+    /**
+     * Degrade this layer to reduce its memory usage, this is called by the manager when
+     * the memory budget is exceeded.
+     * @return An estimation of the memory freed, in bytes.
+     */
+    protected long degrade() {
+        this.degraded = true;
+        return 0;
+    }
+
+    /** Restore this layer from its degraded state, once memory is available again. */
+    protected void restore() {
+        this.degraded = false;
+    }
+
+    public boolean isDegraded() {
+        return this.degraded;
+    }
+
     /** Called for each display position and configuration. */
     @SuppressWarnings("unused")
     public void pushAudioSource(Vec3i pos, float dist, float audioDistance, float audioVolume) { }
 
+    /**
+     * @return How much this layer is audible by the listener, used to prioritize layers
+     * when giving shared audio sources. Zero if nothing is audible.
+     */
+    public float getAudibility() {
+        return 0f;
+    }
+
+    /** @return The audio source currently given to this layer, or null. */
+    @Nullable
+    public AudioStreamingSource getAudioSource() {
+        return null;
+    }
+
+    /**
+     * Give or take back an audio source from the shared pool, this is only called from
+     * {@link DisplayLayerResources}, that is responsible for stopping the taken back source.
+     * @param audioSource The new audio source, or null to take back the current one.
+     */
+    @SuppressWarnings("unused")
+    public void setAudioSource(@Nullable AudioStreamingSource audioSource) { }
+
     /**
      * Check if this layer is unused for too long, in such case
      * @param now The reference timestamp (monotonic nanoseconds from {@link System#nanoTime()}).
@@ -65,13 +284,25 @@ public abstract class DisplayLayer {
     }
 
     protected String makeLog(String message) {
-        return String.format("[%s:%08X] ", this.getClass().getSimpleName(), this.url.uri().hashCode()) + message;
+        return this.logPrefix + message;
     }
 
     public RenderType getRenderLayer() {
         return this.renderLayer;
     }
 
+    /** @return The batch collecting the quads of all displays using this layer during the frame. */
+    public DisplayBatch getBatch() {
+        return this.batch;
+    }
+
+    /** Draw the quads collected by the batch during this frame, if any. */
+    void drawBatch(BufferBuilder builder) {
+        if (!this.batch.isEmpty()) {
+            this.batch.draw(builder, this.tex.getId());
+        }
+    }
+
     private static class DisplayRenderLayer extends RenderType {
         private DisplayRenderLayer(DisplayLayer layer) {
             super("display", DefaultVertexFormat.POSITION_TEX, VertexFormat.Mode.QUADS,
@@ -1,31 +1,43 @@
 package fr.theorozier.webstreamer.display.render;
 
 import fr.theorozier.webstreamer.WebStreamer;
+import fr.theorozier.webstreamer.display.audio.AudioStreamingBuffer;
 import fr.theorozier.webstreamer.display.audio.AudioStreamingSource;
 import fr.theorozier.webstreamer.display.url.DisplayUrl;
 import fr.theorozier.webstreamer.util.AsyncMap;
 import fr.theorozier.webstreamer.util.AsyncProcessor;
+import fr.theorozier.webstreamer.util.PriorityExecutorService;
 import io.lindstrom.m3u8.model.ByteRange;
 import io.lindstrom.m3u8.model.MediaPlaylist;
 import io.lindstrom.m3u8.model.MediaSegment;
+import io.lindstrom.m3u8.model.SegmentMap;
 import io.lindstrom.m3u8.parser.MediaPlaylistParser;
 import io.lindstrom.m3u8.parser.ParsingMode;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
+import net.minecraft.client.Minecraft;
 import net.minecraft.core.Vec3i;
 import net.minecraft.util.profiling.ActiveProfiler;
+import net.minecraft.util.profiling.InactiveProfiler;
 import net.minecraft.util.profiling.ProfileCollector;
+import net.minecraft.world.phys.Vec3;
 import org.bytedeco.javacv.Frame;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.net.URI;
-import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * There is only instance of this class per source.
@@ -46,6 +58,21 @@ public class DisplayLayerHls extends DisplayLayer {
     /** Interval of playlist requests when a past request has failed, to avoid spamming. */
     private static final long FAILING_PLAYLIST_REQUEST_INTERVAL = 5L * 1000000000L;
 
+    /**
+     * True to use the audio source's played sample offset as master clock for video frames,
+     * can be configured with the system property {@code webstreamer.audioMasterClock}.
+     */
+    private static final boolean AUDIO_MASTER_CLOCK = Boolean.parseBoolean(System.getProperty("webstreamer.audioMasterClock", "true"));
+    /** True to profile ticks, this is disabled by default because the profiler allocates on each tick. */
+    private static final boolean PROFILING = false;
+
+    /** Fraction of the audio/video drift corrected on each fetch, smoothing the correction. */
+    private static final double AUDIO_DRIFT_CORRECTION = 0.1;
+    /** Drift in seconds above which video is directly snapped to the audio clock. */
+    private static final double AUDIO_DRIFT_SNAP = 1.0;
+    /** Margin in blocks added to audio distance, so audio is ready before being heard. */
+    private static final double AUDIBLE_MARGIN = 4.0;
+
     private final MediaPlaylistParser hlsParser;
     private final ProfileCollector profiler;
 
@@ -55,7 +82,7 @@ public class DisplayLayerHls extends DisplayLayer {
     // Playlist //
 
     /** The asynchronous processor */
-    private final AsyncProcessor<URI, MediaPlaylist, IOException> asyncPlaylist;
+    private final AsyncProcessor<URI, PlaylistResponse, IOException> asyncPlaylist;
     /** Segments from the current playlist. */
     private List<MediaSegment> playlistSegments;
     /** Segment offset of the current playlist. */
@@ -66,6 +93,7 @@ public class DisplayLayerHls extends DisplayLayer {
     private long playlistRequestInterval;
     /** Current number of consecutive failed request for the playerlist. Used to  */
     private int playlistConsecutiveFailedRequest = 0;
+    /** URI and bytes of the init section, only accessed by the render thread. */
     private URI initUri;
     private byte[] initBytes;
 
@@ -82,38 +110,60 @@ public class DisplayLayerHls extends DisplayLayer {
 
     /** Frame grabber for the current segment. */
     private FrameGrabber grabber;
+    /** Previous grabber, detached, its remaining audio is decoded by the next frame task before it's stopped. */
+    private FrameGrabber finishingGrabber;
+    /**
+     * Task decoding the next frame, reused for each frame, the grabber must not be used by
+     * the render thread while it's pending. It's only replaced when abandoned.
+     */
+    private FrameTask frameTask = new FrameTask();
 
     private final AsyncMap<String, FrameGrabber, IOException> asyncGrabbers;
+    /** URI of the current segment's grabber being pulled, read by executors to prioritize its start. */
+    private volatile String currentGrabberUri;
 
     // Sound //
 
-    private final AudioStreamingSource audioSource;
+    /** The audio source given by the shared pool, null if this layer has no source. */
+    private AudioStreamingSource audioSource;
 
     private Vec3i nearestAudioPos;
     private float nearestAudioDist;
     private float nearestAudioDistance;
     private float nearestAudioVolume;
+    /** Maximum audibility of the pushed audio sources. */
+    private float pushedAudibility;
+    /** Audibility computed from last pushed audio sources, zero if nothing is audible. */
+    private float audibility;
+    /** True if audio should be decoded and played, requires an audio source. */
+    private boolean audible;
 
     // Timing //
     /** Time in nanoseconds (monotonic) of the last internal cleanup. */
     private long lastCleanup = 0;
 
+    // Handlers //
+    // These are stored to avoid allocating bound method references on each tick.
+    private final BiConsumer<URI, PlaylistResponse> playlistSuccessHandler = (uri, response) -> this.onPlaylistSuccess(response);
+    private final BiConsumer<URI, IOException> playlistErrorHandler = (uri, e) -> this.onPlaylistError(e);
+    private final Consumer<FrameGrabber> grabberSuccessHandler = grabber -> this.grabber = grabber;
+    private final Consumer<IOException> grabberErrorHandler = e -> WebStreamer.LOGGER.error(makeLog("Failed to create and start grabber."), e);
+    private final Consumer<AudioStreamingBuffer> audioBufferHandler = this::queueAudioBuffer;
+
     public DisplayLayerHls(DisplayUrl url, DisplayLayerResources res) {
 
         super(url, res);
 
         this.hlsParser = new MediaPlaylistParser(ParsingMode.LENIENT);
-        this.profiler = new ActiveProfiler(System::nanoTime, () -> 0, true);
-        // this.profiler = DummyProfiler.INSTANCE;
+        this.profiler = PROFILING ? new ActiveProfiler(System::nanoTime, () -> 0, true) : InactiveProfiler.INSTANCE;
 
-        this.asyncPlaylist = new AsyncProcessor<>(this::requestPlaylistBlocking, true);
-        this.asyncGrabbers = new AsyncMap<>(this::requestGrabberBlocking, grabber -> {
+        this.asyncPlaylist = new AsyncProcessor<>(this::requestPlaylistAsync, true);
+        // Unused grabbers are always cleaned up on the decode executor, like every grabber stop.
+        this.asyncGrabbers = new AsyncMap<>(this::requestGrabberAsync, grabber -> {
             WebStreamer.LOGGER.info(makeLog("Stopping requested but unused grabber."));
             grabber.stop();
         }, GRABBER_REQUEST_TIMEOUT);
 
-        this.audioSource = new AudioStreamingSource();
-
         this.resetPlaylist();
 
     }
@@ -121,24 +171,114 @@ public class DisplayLayerHls extends DisplayLayer {
     @Override
     public void free() {
         super.free();
-        this.asyncGrabbers.cleanup(this.res.getExecutor());
-        this.audioSource.free();
+        this.releaseMedia();
+    }
+
+    /**
+     * The playlist and the position in its timeline are kept, as well as the init section,
+     * when resumed the timeline is advanced by the suspended time, so the playback restarts
+     * from the right segment if it's still in the playlist.
+     */
+    @Override
+    protected void suspend() {
+        super.suspend();
+        this.releaseMedia();
+    }
+
+    /** Release grabbers, pending requests and the audio source. */
+    private void releaseMedia() {
+        this.asyncPlaylist.cancel();
+        this.asyncGrabbers.cleanup(this.res.getDecodeExecutor());
+        this.resetGrabber(false);
+        if (this.audioSource != null) {
+            this.res.freeAudioSource(this.audioSource);
+            this.audioSource = null;
+        }
+    }
+
+    // Memory //
+
+    @Override
+    public long getMemorySize() {
+        long size = super.getMemorySize();
+        if (this.grabber != null) {
+            size += this.grabber.getMemorySize();
+        }
+        size += this.asyncGrabbers.sumCompleted(FrameGrabber::getMemorySize);
+        if (this.audioSource != null) {
+            size += this.audioSource.getQueuedSize();
+        }
+        return size;
+    }
+
+    /**
+     * When degraded, prefetched grabbers are stopped and the next segment is no longer
+     * prefetched, so it's only requested once reached, at the cost of a short freeze.
+     */
+    @Override
+    protected long degrade() {
+        super.degrade();
+        long prefetchedSize = this.asyncGrabbers.sumCompleted(FrameGrabber::getMemorySize);
+        this.asyncGrabbers.cancelAbove(this.res.getDecodeExecutor(), this.segmentIndex);
+        return prefetchedSize - this.asyncGrabbers.sumCompleted(FrameGrabber::getMemorySize);
+    }
+
+    /**
+     * The playlist of the refreshed URI is the same stream, so the timeline is kept, and
+     * the failure count is reset, the layer is no longer lost.
+     */
+    @Override
+    protected void setUrl(DisplayUrl url) {
+        super.setUrl(url);
+        this.playlistConsecutiveFailedRequest = 0;
+        this.playlistRequestInterval = INITIAL_PLAYLIST_REQUEST_INTERVAL;
+        this.playlistNextRequestTimestamp = 0;
     }
 
     // Audio //
 
-    private void resetAudioSource() {
-        if (this.nearestAudioPos != null) {
-            this.audioSource.setPosition(this.nearestAudioPos);
-            this.audioSource.setAttenuation(this.nearestAudioDistance);
-            this.audioSource.setVolume(this.nearestAudioVolume);
+    @Override
+    public float getAudibility() {
+        return this.audibility;
+    }
+
+    @Override
+    public AudioStreamingSource getAudioSource() {
+        return this.audioSource;
+    }
+
+    @Override
+    public void setAudioSource(AudioStreamingSource audioSource) {
+        this.audioSource = audioSource;
+        this.audible = false;
+    }
+
+    /** Queue the given audio buffer on the current audio source, or free it if no source. */
+    private void queueAudioBuffer(AudioStreamingBuffer buffer) {
+        if (this.audioSource != null) {
+            this.audioSource.queueBuffer(buffer);
         } else {
-            this.audioSource.stop();
+            buffer.free();
+        }
+    }
+
+    private void resetAudioSource() {
+        this.audibility = this.pushedAudibility;
+        this.audible = this.audioSource != null && this.audibility > 0f;
+        if (this.audioSource != null) {
+            if (this.nearestAudioPos != null && this.audible) {
+                this.audioSource.setPosition(this.nearestAudioPos);
+                this.audioSource.setAttenuation(this.nearestAudioDistance);
+                this.audioSource.setVolume(this.nearestAudioVolume);
+            } else {
+                this.audioSource.stop();
+            }
         }
         this.nearestAudioPos = null;
         this.nearestAudioDist = Float.MAX_VALUE;
         this.nearestAudioDistance = 0f;
         this.nearestAudioVolume = 0f;
+        this.pushedAudibility = 0f;
     }
 
     @Override
@@ -149,6 +289,17 @@ public class DisplayLayerHls extends DisplayLayer {
             this.nearestAudioDistance = audioDistance;
             this.nearestAudioVolume = audioVolume;
         }
+        if (audioVolume > 0f) {
+            // The given distance is a manhattan one, so we compute the real distance to the listener.
+            Vec3 listenerPos = Minecraft.getInstance().gameRenderer.getMainCamera().getPosition();
+            double maxDist = audioDistance + AUDIBLE_MARGIN;
+            double realDist = Math.sqrt(listenerPos.distanceToSqr(pos.getX() + 0.5, pos.getY() + 0.5, pos.getZ() + 0.5));
+            // Same as the linear distance model, but with the margin.
+            float audibility = audioVolume * (float) (1.0 - realDist / maxDist);
+            if (audibility > this.pushedAudibility) {
+                this.pushedAudibility = audibility;
+            }
+        }
     }
 
     // Playlist //
@@ -176,62 +327,72 @@ public class DisplayLayerHls extends DisplayLayer {
         return this.playlistSegments == null ? 0 : this.playlistSegments.size() - 1 + this.playlistOffset;
     }
 
-    /** Internal blocking method to request the playlist. */
-    private MediaPlaylist requestPlaylistBlocking(URI uri) throws IOException {
-        try {
-            HttpRequest request = HttpRequest.newBuilder(uri).GET().timeout(Duration.ofSeconds(10)).build();
-            HttpResponse<Stream<String>> res = this.res.getHttpClient()
-                    .send(request, HttpResponse.BodyHandlers.ofLines());
-            if (res.statusCode() == 200) {
-                final MediaPlaylist result = this.hlsParser.readPlaylist(res.body().iterator());
-                result.mediaSegments()
-                    .stream()
-                    .findFirst()
-                    .flatMap(MediaSegment::segmentMap)
-                    .ifPresentOrElse(
-                        map -> {
-                            final URI newInitUri = url.getContextUri(map.uri());
-                            if (newInitUri.equals(initUri)) return;
-                            initUri = newInitUri;
-                            final HttpResponse<byte[]> response;
-                            try {
-                                response = this.res.getHttpClient().send(
-                                    HttpRequest.newBuilder(newInitUri).GET().timeout(Duration.ofSeconds(1)).build(),
-                                    HttpResponse.BodyHandlers.ofByteArray()
-                                );
-                                if (response.statusCode() != 200) {
-                                    throw new IOException("Failed to request init stream, status code: " + res.statusCode());
-                                }
-                            } catch (IOException e) {
-                                throw new UncheckedIOException(e);
-                            } catch (InterruptedException e) {
-                                throw new UncheckedIOException(new IOException(e));
-                            }
-                            byte[] bytes = response.body();
-                            if (map.byteRange().isPresent()) {
-                                final ByteRange range = map.byteRange().get();
-                                if (range.offset().isPresent()) {
-                                    bytes = Arrays.copyOfRange(bytes, (int)(long)range.offset().get(), (int)range.length());
-                                } else {
-                                    bytes = Arrays.copyOf(bytes, (int)range.length());
-                                }
-                            }
-                            initBytes = bytes;
-                        },
-                        () -> {
-                            initUri = null;
-                            initBytes = null;
-                        }
-                    );
-                return result;
-            } else {
-                throw new IOException("HTTP request failed, status code: " + res.statusCode());
+    /**
+     * Internal method to request the playlist, without blocking any thread. The current init
+     * section is given to the response handler, which doesn't run on render thread.
+     */
+    private CompletableFuture<PlaylistResponse> requestPlaylistAsync(URI uri, ExecutorService executor) {
+        final URI initUri = this.initUri;
+        final byte[] initBytes = this.initBytes;
+        CompletableFuture<HttpResponse<byte[]>> download = this.res.getSingleFlightClient().getAsync(uri, Duration.ofSeconds(10));
+        CompletableFuture<PlaylistResponse> result = download.thenCompose(res -> this.onPlaylistResponse(res, initUri, initBytes));
+        result.whenComplete((playlist, e) -> {
+            if (result.isCancelled()) {
+                download.cancel(true);
             }
-        } catch (InterruptedException e) {
-            throw new IOException(e);
-        } catch (UncheckedIOException uioe) {
-            throw uioe.getCause();
+        });
+        return result;
+    }
+
+    /**
+     * Parse the playlist response, and request the init section if it changed. The init
+     * section is only applied to this layer on render thread, by {@link #onPlaylistSuccess}.
+     */
+    private CompletableFuture<PlaylistResponse> onPlaylistResponse(HttpResponse<byte[]> res, URI initUri, byte[] initBytes) {
+
+        if (res.statusCode() != 200) {
+            return CompletableFuture.failedFuture(new IOException("HTTP request failed, status code: " + res.statusCode()));
+        }
+
+        final MediaPlaylist result;
+        try {
+            result = this.hlsParser.readPlaylist(new String(res.body(), StandardCharsets.UTF_8).lines().iterator());
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
         }
+
+        Optional<SegmentMap> segmentMap = result.mediaSegments()
+            .stream()
+            .findFirst()
+            .flatMap(MediaSegment::segmentMap);
+
+        if (segmentMap.isEmpty()) {
+            return CompletableFuture.completedFuture(new PlaylistResponse(result, null, null));
+        }
+
+        final SegmentMap map = segmentMap.get();
+        final URI newInitUri = this.url.getContextUri(map.uri());
+        if (newInitUri.equals(initUri)) {
+            return CompletableFuture.completedFuture(new PlaylistResponse(result, initUri, initBytes));
+        }
+
+        return this.res.getSingleFlightClient().getAsync(newInitUri, Duration.ofSeconds(1)).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new CompletionException(new IOException("Failed to request init stream, status code: " + response.statusCode()));
+            }
+            // The body might be shared with other coalesced requests, it's never modified.
+            byte[] bytes = response.body();
+            if (map.byteRange().isPresent()) {
+                final ByteRange range = map.byteRange().get();
+                if (range.offset().isPresent()) {
+                    bytes = Arrays.copyOfRange(bytes, (int)(long)range.offset().get(), (int)range.length());
+                } else {
+                    bytes = Arrays.copyOf(bytes, (int)range.length());
+                }
+            }
+            return new PlaylistResponse(result, newInitUri, bytes);
+        });
+
     }
 
     private void resetPlaylist() {
@@ -250,39 +411,123 @@ public class DisplayLayerHls extends DisplayLayer {
 
     private void fetchPlaylist() {
         this.profiler.push("fetch_playlist");
-        this.asyncPlaylist.fetch(this.res.getExecutor(), playlist -> {
-            this.profiler.push("success");
-            this.playlistConsecutiveFailedRequest = 0;
-            int newOffset = (int) playlist.mediaSequence();
-            if (newOffset > this.playlistOffset) {
-                this.playlistSegments = playlist.mediaSegments();
-                this.playlistOffset = (int) playlist.mediaSequence();
-                if (!this.playlistSegments.isEmpty()) {
-                    MediaSegment lastSegment = this.playlistSegments.get(this.playlistSegments.size() - 1);
-                    long newInterval = (long) (lastSegment.duration() * 1000000000.0 * 0.7);
-                    // Only change request interval if it represents more than 10% of the current interval.
-                    if (Math.abs(newInterval - this.playlistRequestInterval) >= this.playlistRequestInterval / 10) {
-                        WebStreamer.LOGGER.info(makeLog("New request interval: {}"), newInterval);
-                        this.playlistRequestInterval = newInterval;
-                    }
+        this.asyncPlaylist.fetch(this.res.getIoExecutor(), this.playlistSuccessHandler, this.playlistErrorHandler);
+        this.profiler.pop();
+    }
+
+    private void onPlaylistSuccess(PlaylistResponse response) {
+        this.profiler.push("success");
+        this.playlistConsecutiveFailedRequest = 0;
+        this.initUri = response.initUri();
+        this.initBytes = response.initBytes();
+        MediaPlaylist playlist = response.playlist();
+        int newOffset = (int) playlist.mediaSequence();
+        if (newOffset > this.playlistOffset) {
+            this.playlistSegments = playlist.mediaSegments();
+            this.playlistOffset = (int) playlist.mediaSequence();
+            if (!this.playlistSegments.isEmpty()) {
+                MediaSegment lastSegment = this.playlistSegments.get(this.playlistSegments.size() - 1);
+                long newInterval = (long) (lastSegment.duration() * 1000000000.0 * 0.7);
+                // Only change request interval if it represents more than 10% of the current interval.
+                if (Math.abs(newInterval - this.playlistRequestInterval) >= this.playlistRequestInterval / 10) {
+                    WebStreamer.LOGGER.info(makeLog("New request interval: {}"), newInterval);
+                    this.playlistRequestInterval = newInterval;
                 }
             }
-            this.profiler.pop();
-        }, e -> {
-            // If failing, put timestamp to retry later.
-            this.playlistRequestInterval = FAILING_PLAYLIST_REQUEST_INTERVAL;
-            this.playlistConsecutiveFailedRequest++;
-            WebStreamer.LOGGER.error(makeLog("Failed to request playlist, setting interval to {} seconds."), this.playlistRequestInterval / 1000000000, e);
-        });
+        }
         this.profiler.pop();
     }
 
+    /** A parsed playlist with its init section, null if none, given to the render thread. */
+    private record PlaylistResponse(MediaPlaylist playlist, URI initUri, byte[] initBytes) { }
+
+    private void onPlaylistError(IOException e) {
+        // If failing, put timestamp to retry later.
+        this.playlistRequestInterval = FAILING_PLAYLIST_REQUEST_INTERVAL;
+        this.playlistConsecutiveFailedRequest++;
+        WebStreamer.LOGGER.error(makeLog("Failed to request playlist, setting interval to {} seconds."), this.playlistRequestInterval / 1000000000, e);
+    }
+
     // Grabber //
 
-    private FrameGrabber requestGrabberBlocking(String uri) throws IOException {
-        FrameGrabber grabber = new FrameGrabber(this.res, this.url.getContextUri(uri), uri, initBytes);
-        grabber.start();
-        return grabber;
+    /**
+     * Internal method to request a grabber, the segment is downloaded without blocking any
+     * thread, then an admission permit is acquired and the grabber is started on the decode
+     * executor.
+     */
+    private CompletableFuture<FrameGrabber> requestGrabberAsync(String uri, ExecutorService executor) {
+
+        final byte[] initBytes = this.initBytes;
+        final URI segmentUri;
+        try {
+            segmentUri = this.url.getContextUri(uri);
+        } catch (IllegalArgumentException e) {
+            // Called from render thread, so it's reported like any failed request.
+            return CompletableFuture.failedFuture(new IOException("Invalid segment URI: " + uri, e));
+        }
+
+        CompletableFuture<HttpResponse<byte[]>> download = this.res.getSingleFlightClient().getAsync(segmentUri, Duration.ofSeconds(1));
+        CompletableFuture<FrameGrabber> result = new CompletableFuture<>();
+
+        download.whenComplete((res, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else if (res.statusCode() != 200) {
+                result.completeExceptionally(new IOException("HTTP request failed, status code: " + res.statusCode()));
+            } else if (!result.isDone()) {
+                // The body might be shared with other coalesced requests, it's never modified.
+                this.startGrabberAsync(uri, initBytes, res.body(), result);
+            }
+        });
+
+        result.whenComplete((grabber, e) -> {
+            if (result.isCancelled()) {
+                download.cancel(true);
+            }
+        });
+
+        return result;
+
+    }
+
+    /** Acquire an admission permit and start the grabber, completing the given result. */
+    private void startGrabberAsync(String uri, byte[] initBytes, byte[] bytes, CompletableFuture<FrameGrabber> result) {
+
+        // The segment that is about to play goes before the prefetched ones.
+        DisplayTask taskClass = uri.equals(this.currentGrabberUri) ? DisplayTask.CURRENT_SEGMENT : DisplayTask.PREFETCH;
+        float distance = this.displayDistance;
+
+        CompletableFuture<GrabberAdmission.Permit> permitFuture = this.res.getGrabberAdmission().acquire(this, taskClass, distance);
+        result.whenComplete((grabber, e) -> {
+            if (result.isCancelled()) {
+                permitFuture.cancel(false);
+            }
+        });
+
+        permitFuture.thenAccept(permit -> {
+            if (result.isDone()) {
+                permit.release();
+                return;
+            }
+            FrameGrabber grabber = new FrameGrabber(this.res, permit, uri, initBytes, bytes);
+            this.res.submitDecode(() -> {
+                // Don't start if the request has been cancelled while queued.
+                if (result.isDone()) {
+                    permit.release();
+                    return null;
+                }
+                grabber.start();
+                return grabber;
+            }, taskClass, distance).whenComplete((startedGrabber, startError) -> {
+                if (startError != null) {
+                    result.completeExceptionally(startError);
+                } else if (startedGrabber != null && !result.complete(startedGrabber)) {
+                    // Cancelled while starting.
+                    startedGrabber.stop();
+                }
+            });
+        });
+
     }
 
     /**
@@ -292,7 +537,7 @@ public class DisplayLayerHls extends DisplayLayer {
     private void requestGrabber(int index) {
         MediaSegment seg = this.getSegment(index);
         if (seg != null) {
-            this.asyncGrabbers.push(this.res.getExecutor(), seg.uri(), index);
+            this.asyncGrabbers.push(this.res.getIoExecutor(), seg.uri(), index);
         }
     }
 
@@ -301,10 +546,9 @@ public class DisplayLayerHls extends DisplayLayer {
      * @param index The segment index to pull.
      */
     private void pullGrabberAndUse(int index) {
-        boolean requested = this.asyncGrabbers.pull(
-            index, g -> grabber = g,
-            e -> WebStreamer.LOGGER.error(makeLog("Failed to create and start grabber."), e)
-        );
+        MediaSegment seg = this.getSegment(index);
+        this.currentGrabberUri = seg == null ? null : seg.uri();
+        boolean requested = this.asyncGrabbers.pull(index, this.grabberSuccessHandler, this.grabberErrorHandler);
         if (!requested) {
             this.requestGrabber(index);
         }
@@ -316,28 +560,62 @@ public class DisplayLayerHls extends DisplayLayer {
      */
     private void resetGrabber(boolean toBeContinued) {
         if (this.grabber != null) {
-            if (toBeContinued) {
-                try {
-                    this.grabber.grabRemaining(this.audioSource::queueBuffer);
-                } catch (IOException e) {
-                    WebStreamer.LOGGER.error(makeLog("Failed to grab remaining from current grabber."), e);
+            if (!this.frameTask.isIdle()) {
+                // Only when released, the task still owns the grabber, so it's stopped once done.
+                this.frameTask.abandon();
+                this.frameTask = new FrameTask();
+                if (this.audioSource != null) {
+                    this.audioSource.stop();
                 }
+            } else if (toBeContinued) {
+                // The remaining audio is decoded by the next frame task, so it's not done on
+                // the render thread, and it's queued before the audio of the next grabber.
+                if (this.finishingGrabber != null) {
+                    this.stopGrabber(this.finishingGrabber);
+                }
+                this.grabber.detach();
+                this.finishingGrabber = this.grabber;
             } else {
-                this.audioSource.stop();
+                if (this.audioSource != null) {
+                    this.audioSource.stop();
+                }
+                this.stopGrabber(this.grabber);
             }
-            this.res.getExecutor().execute(this.grabber::stop);
             this.grabber = null;
         }
+        if (!toBeContinued && this.finishingGrabber != null) {
+            this.stopGrabber(this.finishingGrabber);
+            this.finishingGrabber = null;
+        }
+    }
+
+    /** Detach the given grabber and stop it on the decode executor, this can be called from any thread. */
+    private void stopGrabber(FrameGrabber grabber) {
+        grabber.detach();
+        this.res.executeDecode(grabber::stop, DisplayTask.STOP, this.displayDistance);
     }
 
     private void fetch() throws IOException {
 
+        if (this.frameTask.isPending()) {
+            // Still decoding, the elapsed time is accumulated until the next tick.
+            return;
+        } else if (this.frameTask.isDone()) {
+            this.profiler.push("commit_frame");
+            this.commitFrame();
+            this.profiler.pop();
+        }
+
         long now = System.nanoTime();
         double elapsedTime = ((double) (now - this.lastFetchTimestamp) / 1000000000.0);
         this.lastFetchTimestamp = now;
 
         // System.out.println("sound source playing: " + this.soundSource.isPlaying());
 
+        if (AUDIO_MASTER_CLOCK) {
+            elapsedTime = this.correctElapsedTime(elapsedTime);
+        }
+
         if (this.playlistSegments != null) {
 
             // Tries to pull the playlist if being requested.
@@ -394,6 +672,8 @@ public class DisplayLayerHls extends DisplayLayer {
                     // We only want to continue if the sound source is currently playing,
                     // not playing means we are desynchronized.
                     this.resetGrabber(true);
+                    // Abort requests of segments that the playhead already passed.
+                    this.asyncGrabbers.cancelBelow(this.res.getDecodeExecutor(), this.segmentIndex);
                 }
 
                 int offsetFromLastSegment = this.getLastSegmentIndex() - this.segmentIndex;
@@ -403,7 +683,7 @@ public class DisplayLayerHls extends DisplayLayer {
                     this.requestPlaylist(now);
                 }
 
-                if (offsetFromLastSegment >= 1) {
+                if (offsetFromLastSegment >= 1 && !this.degraded) {
                     // If we have at least one segment after the current one, preload it.
                     this.requestGrabber(this.segmentIndex + 1);
                 }
@@ -480,20 +760,242 @@ public class DisplayLayerHls extends DisplayLayer {
             }
         }
 
-        long segmentTimestampMicros = (long) (this.segmentTimestamp * 1000000);
+        // Nobody sees or hears this layer, the timeline still advances but no frame is
+        // decoded, it resumes from the current timestamp once visible again.
+        if (!this.visible && !this.audible) {
+            return;
+        }
 
-        this.profiler.push("grab_frame");
-        Frame frame = this.grabber.grabAt(segmentTimestampMicros, this.audioSource::queueBuffer);
+        this.profiler.push("prepare_frame");
+        this.prepareFrame();
         this.profiler.pop();
 
-        if (frame != null) {
+    }
+
+    /**
+     * Prepare phase, the frame at the current timestamp is grabbed on the decode executor,
+     * including video decoding and audio conversion. The result is committed on a later
+     * tick by {@link #commitFrame()}, the grabber is not touched by the render thread
+     * in-between.
+     */
+    private void prepareFrame() {
+
+        final long segmentTimestampMicros = (long) (this.segmentTimestamp * 1000000);
+        if (this.finishingGrabber == null && !this.grabber.hasFrameAt(segmentTimestampMicros)) {
+            // The next frame is still ahead, nothing to decode.
+            return;
+        }
+
+        final FrameTask task = this.frameTask;
+        task.grabber = this.grabber;
+        task.finishingGrabber = this.finishingGrabber;
+        this.finishingGrabber = null;
+        // When not audible or without audio source, audio packets are discarded by the grabber
+        // and the audio source is stopped, it will restart synchronized on the next frame once
+        // audible again.
+        task.audio = this.audible;
+        task.timestamp = segmentTimestampMicros;
+        // Far displays only sample a reduced mip level, so the frame is reduced by the decode
+        // thread and only that level is uploaded.
+        task.lod = this.visible ? this.tex.getLod(this.tex.getMinification(this.projectedSize)) : 0;
+        // Otherwise, the frame is copied to the texture's staging buffer by the decode thread,
+        // so the commit only has to issue an asynchronous upload.
+        task.staging = this.visible && task.lod == 0 ? this.tex.acquireStaging() : null;
+        task.submit();
+
+    }
+
+    /**
+     * Commit phase, on render thread, the decoded audio buffers are queued and the frame
+     * is uploaded to the texture. The frame is still owned by the grabber, so this must
+     * be done before grabbing again.
+     */
+    private void commitFrame() {
+
+        final FrameTask task = this.frameTask;
+        final Frame frame = task.frame;
+        final PixelBufferRing.Slot staging = task.staging;
+        task.audioBuffers.forEach(this.audioBufferHandler);
+        task.audioBuffers.clear();
+
+        if (task.error != null) {
+            WebStreamer.LOGGER.error(makeLog("Failed to grab frame."), task.error);
+            if (staging != null) {
+                staging.release();
+            }
+        } else if (frame != null) {
             this.profiler.push("upload_image");
-            this.tex.upload(frame);
-            this.profiler.popPush("play_audio");
-            this.audioSource.playFrom(frame.timestamp);
+            // Only heard, the texture keeps its last frame.
+            if (this.visible && task.reducedImage.isReduced()) {
+                this.tex.upload(task.reducedImage);
+            } else if (this.visible) {
+                this.tex.upload(frame, staging, this.tex.getMinification(this.projectedSize));
+            } else if (staging != null) {
+                staging.release();
+            }
+            if (this.audioSource != null) {
+                this.profiler.popPush("play_audio");
+                this.audioSource.playFrom(frame.timestamp);
+            }
             this.profiler.pop();
+        } else if (staging != null) {
+            staging.release();
         }
 
+        task.reset();
+
+    }
+
+    /**
+     * Decode task of the prepare phase, reused for each frame so a tick doesn't allocate. Its
+     * inputs are set by the render thread before it's submitted, and its outputs are read by
+     * the render thread once done. If abandoned while pending, it releases itself once done.
+     */
+    private class FrameTask extends PriorityExecutorService.Task {
+
+        private static final int IDLE = 0, PENDING = 1, DONE = 2, ABANDONED = 3;
+
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+
+        private FrameGrabber grabber;
+        private FrameGrabber finishingGrabber;
+        private boolean audio;
+        private long timestamp;
+        private int lod;
+        private PixelBufferRing.Slot staging;
+
+        /** Audio buffers decoded with the frame, including the remaining ones of the finishing grabber. */
+        private final List<AudioStreamingBuffer> audioBuffers = new ArrayList<>();
+        private final Consumer<AudioStreamingBuffer> audioBufferCollector = this.audioBuffers::add;
+        /** Frame reduced to a mip level, for far displays. */
+        private final DisplayTexture.ReducedImage reducedImage = new DisplayTexture.ReducedImage();
+        /** The grabbed frame, null if no new frame at this timestamp. */
+        private Frame frame;
+        private Throwable error;
+
+        boolean isIdle() {
+            return this.state.get() == IDLE;
+        }
+
+        boolean isPending() {
+            return this.state.get() == PENDING;
+        }
+
+        boolean isDone() {
+            return this.state.get() == DONE;
+        }
+
+        void submit() {
+            this.state.set(PENDING);
+            DisplayLayerHls.this.res.executeDecode(this, DisplayTask.FRAME, DisplayLayerHls.this.displayDistance);
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                if (this.finishingGrabber != null) {
+                    this.finishingGrabber.setAudio(this.audio);
+                    this.finishingGrabber.grabRemaining(this.audioBufferCollector);
+                }
+                this.grabber.setAudio(this.audio);
+                Frame frame = this.grabber.grabAt(this.timestamp, this.audioBufferCollector);
+                if (frame != null) {
+                    if (this.lod > 0) {
+                        this.reducedImage.reduce(frame, this.lod);
+                    } else if (this.staging != null) {
+                        DisplayTexture.stage(this.staging, frame);
+                    }
+                }
+                this.frame = frame;
+            } catch (Throwable e) {
+                this.error = e;
+            } finally {
+                if (this.finishingGrabber != null) {
+                    DisplayLayerHls.this.stopGrabber(this.finishingGrabber);
+                    this.finishingGrabber = null;
+                }
+            }
+
+            if (!this.state.compareAndSet(PENDING, DONE)) {
+                this.release();
+            }
+
+        }
+
+        /**
+         * Abandon this task and its grabber, if still pending it's released by the decode
+         * thread once done, otherwise it's released now.
+         */
+        void abandon() {
+            if (!this.state.compareAndSet(PENDING, ABANDONED)) {
+                this.release();
+            }
+        }
+
+        /** Clear the outputs once committed, so the task can be submitted again. */
+        void reset() {
+            this.grabber = null;
+            this.staging = null;
+            this.reducedImage.reset();
+            this.frame = null;
+            this.error = null;
+            this.state.set(IDLE);
+        }
+
+        /** Free the outputs and stop the grabber of an abandoned task. */
+        private void release() {
+            this.audioBuffers.forEach(AudioStreamingBuffer::free);
+            this.audioBuffers.clear();
+            if (this.staging != null) {
+                this.staging.release();
+            }
+            if (this.grabber != null) {
+                DisplayLayerHls.this.stopGrabber(this.grabber);
+            }
+            this.reset();
+        }
+
+    }
+
+    /**
+     * Correct the elapsed time to follow the audio master clock. Audio buffers are never
+     * dropped, instead the video playhead is slowed down or sped up to catch up the
+     * audio clock, or directly snapped to it if the drift is too large.
+     * @param elapsedTime The wall-clock elapsed time since last fetch, in seconds.
+     * @return The corrected elapsed time, in seconds, never negative.
+     */
+    private double correctElapsedTime(double elapsedTime) {
+
+        if (this.grabber == null || this.audioSource == null) {
+            return elapsedTime;
+        }
+
+        // Processed buffers are freed by the tick, the clock query has no side effect.
+        this.audioSource.unqueueAndFree();
+        long audioTimestamp = this.audioSource.getPlayingTimestamp();
+        if (audioTimestamp < 0) {
+            return elapsedTime;
+        }
+
+        // Compare audio clock with the video clock after wall-clock advance.
+        double videoTimestamp = this.grabber.getRefTimestamp() / 1000000.0 + this.segmentTimestamp + elapsedTime;
+        double drift = audioTimestamp / 1000000.0 - videoTimestamp;
+
+        if (Math.abs(drift) >= SAFE_LATENCY) {
+            // Such drift is a timestamp discontinuity, not a clock drift.
+            return elapsedTime;
+        } else if (Math.abs(drift) >= AUDIO_DRIFT_SNAP) {
+            if (WebStreamer.LOGGER.isDebugEnabled()) {
+                WebStreamer.LOGGER.debug(makeLog("Snapping video to audio clock, drift: {} s"), drift);
+            }
+            elapsedTime += drift;
+        } else {
+            elapsedTime += drift * AUDIO_DRIFT_CORRECTION;
+        }
+
+        return Math.max(0.0, elapsedTime);
+
     }
 
     @Override
@@ -519,7 +1021,7 @@ public class DisplayLayerHls extends DisplayLayer {
         boolean cleanup = now - this.lastCleanup >= CLEANUP_INTERVAL;
         if (cleanup) {
             this.profiler.push("cleanup");
-            this.asyncGrabbers.cleanupTimedOut(this.res.getExecutor(), now);
+            this.asyncGrabbers.cleanupTimedOut(this.res.getDecodeExecutor(), now);
             this.lastCleanup = now;
             this.profiler.pop();
         }
@@ -1,26 +1,21 @@
 package fr.theorozier.webstreamer.display.render;
 
-import com.mojang.blaze3d.platform.TextureUtil;
 import fr.theorozier.webstreamer.WebStreamer;
 import fr.theorozier.webstreamer.display.url.DisplayUrl;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
-import org.apache.commons.io.IOUtils;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.stb.STBImage;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.time.Duration;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 @Environment(EnvType.CLIENT)
 public class DisplayLayerImage extends DisplayLayer {
@@ -29,7 +24,7 @@ public class DisplayLayerImage extends DisplayLayer {
 
     private long imageNextRequestTimestamp = 0;
     private boolean imageUploaded = false;
-    private Future<STBLoadedImage> futureImage;
+    private CompletableFuture<STBLoadedImage> futureImage;
 
     public DisplayLayerImage(DisplayUrl url, DisplayLayerResources res) {
         super(url, res);
@@ -42,7 +37,7 @@ public class DisplayLayerImage extends DisplayLayer {
 
         if (this.futureImage == null) {
             if (!this.imageUploaded && now >= this.imageNextRequestTimestamp) {
-                this.futureImage = this.res.getExecutor().submit(this::requestImageBlocking);
+                this.futureImage = this.requestImageAsync();
             }
         } else if (this.futureImage.isDone()) {
 
@@ -73,35 +68,35 @@ public class DisplayLayerImage extends DisplayLayer {
 
     }
 
-    private STBLoadedImage requestImageBlocking() throws IOException {
-        try {
-            HttpRequest request = HttpRequest.newBuilder(this.url.uri()).GET().timeout(Duration.ofSeconds(10)).build();
-            HttpResponse<InputStream> res = this.res.getHttpClient().send(request, HttpResponse.BodyHandlers.ofInputStream());
-            if (res.statusCode() == 200) {
-                InputStream stream = res.body();
-                ByteBuffer buf = null;
-                try {
-                    buf = TextureUtil.readResource(stream);
-                    buf.rewind();
-                    try (MemoryStack memoryStack = MemoryStack.stackPush()){
-                        IntBuffer width = memoryStack.mallocInt(1);
-                        IntBuffer height = memoryStack.mallocInt(1);
-                        IntBuffer channels = memoryStack.mallocInt(1);
-                        ByteBuffer stbBuf = STBImage.stbi_load_from_memory(buf, width, height, channels, STBImage.STBI_rgb_alpha);
-                        if (stbBuf == null) {
-                            throw new IOException("Could not load image: " + STBImage.stbi_failure_reason());
-                        }
-                        return new STBLoadedImage(stbBuf, width.get(0), height.get(0), channels.get(0));
-                    }
-                } finally {
-                    MemoryUtil.memFree(buf);
-                    IOUtils.closeQuietly(stream);
-                }
-            } else {
-                throw new IOException("HTTP request failed, status code: " + res.statusCode());
+    /**
+     * Internal method to request the image, it's downloaded without blocking any thread
+     * and then decoded on the decode executor. An invalid URI fails the returned future,
+     * so the tick doesn't throw.
+     */
+    private CompletableFuture<STBLoadedImage> requestImageAsync() {
+        return this.res.getSingleFlightClient().getAsync(this.url.uri(), Duration.ofSeconds(10)).thenCompose(res -> {
+            if (res.statusCode() != 200) {
+                return CompletableFuture.failedFuture(new IOException("HTTP request failed, status code: " + res.statusCode()));
+            }
+            byte[] bytes = res.body();
+            return this.res.submitDecode(() -> decodeImage(bytes), DisplayTask.IMAGE, this.displayDistance);
+        });
+    }
+
+    private static STBLoadedImage decodeImage(byte[] bytes) throws IOException {
+        ByteBuffer buf = MemoryUtil.memAlloc(bytes.length);
+        buf.put(bytes).flip();
+        try (MemoryStack memoryStack = MemoryStack.stackPush()){
+            IntBuffer width = memoryStack.mallocInt(1);
+            IntBuffer height = memoryStack.mallocInt(1);
+            IntBuffer channels = memoryStack.mallocInt(1);
+            ByteBuffer stbBuf = STBImage.stbi_load_from_memory(buf, width, height, channels, STBImage.STBI_rgb_alpha);
+            if (stbBuf == null) {
+                throw new IOException("Could not load image: " + STBImage.stbi_failure_reason());
             }
-        } catch (InterruptedException e) {
-            throw new IOException(e);
+            return new STBLoadedImage(stbBuf, width.get(0), height.get(0), channels.get(0));
+        } finally {
+            MemoryUtil.memFree(buf);
         }
     }
 
@@ -1,12 +1,26 @@
 package fr.theorozier.webstreamer.display.render;
 
 import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.BufferBuilder;
+import fr.theorozier.webstreamer.WebStreamer;
 import fr.theorozier.webstreamer.display.url.DisplayUrl;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2LongMaps;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
 /**
  * This class is responsible for caching and keeping the number of layer to the minimum.
  */
@@ -17,18 +31,68 @@ public class DisplayLayerManager {
     private static final int MAX_LAYERS_COUNT = 20;
     /** Interval of cleanups for unused display layers. */
     private static final long CLEANUP_INTERVAL = 5L * 1000000000L;
+    /**
+     * Memory budget of all layers in bytes, can be configured in MiB with the system
+     * property {@code webstreamer.memoryBudget}.
+     */
+    private static final long MEMORY_BUDGET = Math.max(1, Integer.getInteger("webstreamer.memoryBudget", 512)) * 1024L * 1024L;
+    /** Degraded layers are restored once the memory usage gets below this. */
+    private static final long MEMORY_RESTORE_THRESHOLD = MEMORY_BUDGET * 3 / 4;
+    /** Interval of memory usage checks against the budget. */
+    private static final long MEMORY_CHECK_INTERVAL = 1000000000L;
+    /**
+     * Grace period before freeing a layer that is no longer referenced by any display, in
+     * case it's referenced again shortly after. Can be configured in milliseconds with the
+     * system property {@code webstreamer.layerReleaseDelay}, zero to free it directly.
+     */
+    private static final long LAYER_RELEASE_DELAY = Math.max(0, Long.getLong("webstreamer.layerReleaseDelay", 2000L)) * 1000000L;
+    /**
+     * Memory budget of suspended layers in the standby pool in bytes, can be configured in
+     * MiB with the system property {@code webstreamer.standbyBudget}, zero to disable it.
+     */
+    private static final long STANDBY_BUDGET = Math.max(0, Integer.getInteger("webstreamer.standbyBudget", 64)) * 1024L * 1024L;
+    /** The timeout since its last render for a suspended layer to be freed from the standby pool. */
+    private static final long STANDBY_TIMEOUT = 120L * 1000000000L;
 
     private final Int2ObjectOpenHashMap<DisplayLayer> layers = new Int2ObjectOpenHashMap<>();
+    /** Number of displays referencing each URL id. */
+    private final Int2IntOpenHashMap references = new Int2IntOpenHashMap();
+    /** Time in nanoseconds (monotonic) when layers, by URL id, lost their last reference. */
+    private final Int2LongOpenHashMap releaseTimes = new Int2LongOpenHashMap();
+    /** Suspended layers by URL id, from the least recently parked, they can be resumed. */
+    private final Int2ObjectLinkedOpenHashMap<DisplayLayer> standbyLayers = new Int2ObjectLinkedOpenHashMap<>();
+    /** Memory used by suspended layers, in bytes. */
+    private long standbySize = 0;
     
     /** Common pools for shared and reusable heavy buffers. */
     private final DisplayLayerResources res = new DisplayLayerResources();
+    /** State shared by all displays rendered in a frame. */
+    private final DisplayRenderContext renderContext = new DisplayRenderContext();
+    /** Visibility test of displays, against the frustum of the render context. */
+    private final DisplayCulling culling = new DisplayCulling();
 
     /** Time in nanoseconds (monotonic) of the last cleanup for unused layers. */
     private long lastCleanup = 0;
+    /** Time in nanoseconds (monotonic) of the last memory usage check. */
+    private long lastMemoryCheck = 0;
+    /** Memory usage of all layers in bytes, as of the last check. */
+    private long memorySize = 0;
+    /** Buffer builder used to upload batched quads of all layers. */
+    private final BufferBuilder batchBuilder = new BufferBuilder(256);
+    /** Temporary list of layers sorted by importance, reused on each memory check. */
+    private final List<DisplayLayer> sortedLayers = new ArrayList<>();
     
     public DisplayLayerResources getResources() {
         return this.res;
     }
+
+    public DisplayRenderContext getRenderContext() {
+        return this.renderContext;
+    }
+
+    public DisplayCulling getCulling() {
+        return this.culling;
+    }
     
     @NotNull
     private DisplayLayer newLayerForUrl(DisplayUrl url) throws UnknownFormatException {
@@ -44,25 +108,190 @@ public class DisplayLayerManager {
     }
     
     /**
-     * Get a display layer from the given URL, the same URL returns the same layer.
+     * Get a display layer from the given URL, the same URL returns the same layer. If the
+     * maximum layers count has been reached, the least important layer is evicted if it's
+     * less important than the requesting display.
      * @param url The display URL.
+     * @param importance The importance of the requesting display, see {@link DisplayLayer#getImportance(long)}.
      * @return The layer specific to the given URL.
-     * @throws OutOfLayerException Maximum layers count has been reached.
+     * @throws OutOfLayerException Maximum layers count has been reached and no layer can be evicted.
      * @throws UnknownFormatException The URL format is not recognized.
      */
     @NotNull
-    public DisplayLayer getLayerForUrl(DisplayUrl url) throws OutOfLayerException, UnknownFormatException {
+    public DisplayLayer getLayerForUrl(DisplayUrl url, float importance) throws OutOfLayerException, UnknownFormatException {
         DisplayLayer layer = this.layers.get(url.id());
         if (layer == null) {
-            if (this.layers.size() >= MAX_LAYERS_COUNT) {
+            if (this.layers.size() >= MAX_LAYERS_COUNT && !this.evictLayer(importance)) {
                 throw new OutOfLayerException();
             }
-            layer = this.newLayerForUrl(url);
+            layer = this.unparkLayer(url.id());
+            if (layer == null) {
+                layer = this.newLayerForUrl(url);
+            }
             this.layers.put(url.id(), layer);
         }
         return layer;
     }
 
+    /**
+     * Update the URL of the layer, active or suspended, with the same id as the given
+     * URL. This is used when the URI of a stream is refreshed, so the layer continues
+     * with the new URI without interrupting playback.
+     * @param url The refreshed display URL.
+     */
+    public void updateLayerUrl(DisplayUrl url) {
+        DisplayLayer layer = this.layers.get(url.id());
+        if (layer == null) {
+            layer = this.standbyLayers.get(url.id());
+        }
+        if (layer != null && !layer.url.uri().equals(url.uri())) {
+            layer.setUrl(url);
+        }
+    }
+
+    /**
+     * Prewarm the layer of a display that is about to enter view, so it starts requesting
+     * its media before being rendered. The layer is only created if it doesn't require
+     * evicting another layer, and it's not considered important.
+     * @param url The display URL.
+     * @param dist The manhattan distance between the display and the camera.
+     */
+    public void prewarmLayer(DisplayUrl url, float dist) {
+        try {
+            this.getLayerForUrl(url, 0f).pushHiddenDisplay(dist);
+        } catch (OutOfLayerException | UnknownFormatException e) {
+            // Not prewarmed, the display will retry once rendered.
+        }
+    }
+
+    /**
+     * Park a layer that is no longer used in the standby pool, it's suspended so it only
+     * keeps its texture and its timeline. The least recently parked layers are freed if
+     * the pool exceeds its budget.
+     * @param id The URL id of the layer, that should already be removed from active layers.
+     * @param layer The layer to park.
+     */
+    private void parkLayer(int id, DisplayLayer layer) {
+        layer.suspend();
+        long size = layer.getMemorySize();
+        if (size > STANDBY_BUDGET) {
+            layer.free();
+            return;
+        }
+        this.standbyLayers.put(id, layer);
+        this.standbySize += size;
+        while (this.standbySize > STANDBY_BUDGET) {
+            this.freeStandbyLayer(this.standbyLayers.firstIntKey());
+        }
+    }
+
+    /**
+     * Remove a layer from the standby pool and resume it, if present.
+     * @param id The URL id of the layer.
+     * @return The resumed layer, or null if not present.
+     */
+    private DisplayLayer unparkLayer(int id) {
+        DisplayLayer layer = this.standbyLayers.remove(id);
+        if (layer != null) {
+            this.standbySize -= layer.getMemorySize();
+            layer.resume();
+        }
+        return layer;
+    }
+
+    /**
+     * Free the suspended layer of the given URL id, if present. This is used when the URL
+     * is evicted from the registry, because its id will never be used again.
+     * <b>Must be called from render thread.</b>
+     * @param id The URL id of the layer.
+     */
+    public void freeStandbyLayer(int id) {
+        DisplayLayer layer = this.standbyLayers.remove(id);
+        if (layer != null) {
+            this.standbySize -= layer.getMemorySize();
+            layer.free();
+        }
+    }
+
+    /**
+     * Take a reference on the layer of the given URL, this is done by displays once their
+     * URL is known, the layer itself is still lazily created by {@link #getLayerForUrl}.
+     * <b>Must be called from render thread.</b>
+     * @param url The display URL.
+     */
+    public void acquireLayer(DisplayUrl url) {
+        this.references.addTo(url.id(), 1);
+        this.releaseTimes.remove(url.id());
+    }
+
+    /**
+     * Release a reference taken with {@link #acquireLayer(DisplayUrl)}, when the display is
+     * unloaded or its source changes. Once a layer has no reference, it's freed after a
+     * short grace period. <b>Must be called from render thread.</b>
+     * @param url The display URL.
+     */
+    public void releaseLayer(DisplayUrl url) {
+        int id = url.id();
+        if (this.references.addTo(id, -1) <= 1) {
+            this.references.remove(id);
+            if (this.layers.containsKey(id)) {
+                this.releaseTimes.put(id, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Free layers that have no reference for longer than the grace period.
+     * @param now The reference timestamp (monotonic nanoseconds from {@link System#nanoTime()}).
+     */
+    private void freeReleasedLayers(long now) {
+        ObjectIterator<Int2LongMap.Entry> it = Int2LongMaps.fastIterator(this.releaseTimes);
+        while (it.hasNext()) {
+            Int2LongMap.Entry entry = it.next();
+            if (now - entry.getLongValue() >= LAYER_RELEASE_DELAY) {
+                DisplayLayer layer = this.layers.remove(entry.getIntKey());
+                if (layer != null) {
+                    this.parkLayer(entry.getIntKey(), layer);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Evict the least important layer, layers that have not been rendered recently are
+     * evicted first, from the least recently used.
+     * @param importance The importance of the requesting display, only less important layers are evicted.
+     * @return True if a layer has been evicted.
+     */
+    private boolean evictLayer(float importance) {
+
+        long now = System.nanoTime();
+        int victimId = 0;
+        DisplayLayer victim = null;
+        float victimImportance = importance;
+
+        for (Int2ObjectMap.Entry<DisplayLayer> entry : Int2ObjectMaps.fastIterable(this.layers)) {
+            DisplayLayer layer = entry.getValue();
+            float layerImportance = layer.getImportance(now);
+            if (layerImportance < victimImportance || (victim != null && layerImportance == victimImportance && layer.lastUse < victim.lastUse)) {
+                victimId = entry.getIntKey();
+                victim = layer;
+                victimImportance = layerImportance;
+            }
+        }
+
+        if (victim == null) {
+            return false;
+        }
+
+        WebStreamer.LOGGER.info("Evicting display layer for {} (importance: {}, requested: {})", victim.url, victimImportance, importance);
+        this.layers.remove(victimId);
+        victim.free();
+        return true;
+
+    }
+
     /**
      * Tick all active display layers. This also calls {@link #cleanup()}
      * at regular interval.
@@ -70,9 +299,19 @@ public class DisplayLayerManager {
     public void tick() {
 
         RenderSystem.assertOnRenderThread();
-        this.layers.values().forEach(DisplayLayer::tick);
+        this.layers.values().forEach(DisplayLayerManager::tickLayer);
+        this.res.updateAudioSources(this.layers.values());
 
         long now = System.nanoTime();
+        if (!this.releaseTimes.isEmpty()) {
+            this.freeReleasedLayers(now);
+        }
+
+        if (now - this.lastMemoryCheck >= MEMORY_CHECK_INTERVAL) {
+            this.checkMemory(now);
+            this.lastMemoryCheck = now;
+        }
+
         if (now - this.lastCleanup >= CLEANUP_INTERVAL) {
             this.cleanup();
             this.lastCleanup = now;
@@ -81,26 +320,145 @@ public class DisplayLayerManager {
     }
 
     /**
-     * Cleanup unused display layers.
+     * Check the memory usage of all layers against the budget. When exceeded, pooled
+     * textures are deleted first, then hidden layers are evicted, from the least recently
+     * used, then visible and culled layers are degraded, from the least important. Culled
+     * layers are not evicted, because their display would create them again. Degraded layers
+     * are restored once enough memory is available.
+     * @param now The reference timestamp (monotonic nanoseconds from {@link System#nanoTime()}).
+     */
+    private void checkMemory(long now) {
+
+        DisplayTexturePool texturePool = this.res.getTexturePool();
+
+        long size = this.standbySize + texturePool.getMemorySize();
+        for (DisplayLayer layer : this.layers.values()) {
+            size += layer.getMemorySize();
+        }
+
+        if (size > MEMORY_BUDGET) {
+
+            WebStreamer.LOGGER.debug("Display layers memory budget exceeded: {}/{} MiB", size >> 20, MEMORY_BUDGET >> 20);
+
+            // Pooled textures are not used by any layer.
+            size -= texturePool.trim(Math.max(0, texturePool.getMemorySize() - (size - MEMORY_BUDGET)));
+
+            // Suspended layers are the first to go, from the least recently parked.
+            while (size > MEMORY_BUDGET && !this.standbyLayers.isEmpty()) {
+                size -= this.standbySize;
+                this.freeStandbyLayer(this.standbyLayers.firstIntKey());
+                size += this.standbySize;
+            }
+
+            this.sortedLayers.addAll(this.layers.values());
+            this.sortedLayers.sort(Comparator.<DisplayLayer>comparingDouble(layer -> layer.getImportance(now))
+                .thenComparingLong(layer -> layer.lastUse));
+
+            for (DisplayLayer layer : this.sortedLayers) {
+                if (size <= MEMORY_BUDGET) {
+                    break;
+                }
+                if (layer.getImportance(now) == 0f && !layer.isCulled()) {
+                    WebStreamer.LOGGER.info("Evicting hidden display layer for {} to fit the memory budget", layer.url);
+                    size -= layer.getMemorySize();
+                    this.layers.remove(layer.url.id());
+                    layer.free();
+                } else if (!layer.isDegraded()) {
+                    WebStreamer.LOGGER.info("Degrading display layer for {} to fit the memory budget", layer.url);
+                    size -= layer.degrade();
+                }
+            }
+
+            this.sortedLayers.clear();
+
+        } else if (size < MEMORY_RESTORE_THRESHOLD) {
+            for (DisplayLayer layer : this.layers.values()) {
+                if (layer.isDegraded()) {
+                    layer.restore();
+                }
+            }
+        }
+
+        this.memorySize = size;
+
+    }
+
+    /** @return The memory usage of all layers in bytes, as of the last check. */
+    public long getMemorySize() {
+        return this.memorySize;
+    }
+
+    private static void tickLayer(DisplayLayer layer) {
+        // Discard quads that have not been drawn on the last frame.
+        layer.getBatch().clear();
+        layer.updateDisplays();
+        layer.tick();
+    }
+
+    /**
+     * Draw the batched quads of all layers, each layer is drawn in one call. This is called
+     * once per frame, after block entities are rendered.
+     */
+    public void drawBatches() {
+        RenderSystem.assertOnRenderThread();
+        for (DisplayLayer layer : this.layers.values()) {
+            layer.drawBatch(this.batchBuilder);
+        }
+    }
+
+    /**
+     * Cleanup unused display layers, they are parked in the standby pool, where they are
+     * freed after a longer timeout.
      */
     public void cleanup() {
+
         RenderSystem.assertOnRenderThread();
+        WebStreamer.LOGGER.debug("Display resources usage: {}, {}, {}, memory: {}/{} MiB, standby: {} layers",
+            this.res.getIoExecutor(), this.res.getDecodeExecutor(), this.res.getGrabberAdmission(),
+            this.memorySize >> 20, MEMORY_BUDGET >> 20, this.standbyLayers.size());
+
         long now = System.nanoTime();
-        this.layers.values().removeIf(displayLayer -> {
-            if (displayLayer.isUnused(now)) {
-                displayLayer.free();
-                return true;
+
+        ObjectIterator<Int2ObjectMap.Entry<DisplayLayer>> it = Int2ObjectMaps.fastIterator(this.layers);
+        while (it.hasNext()) {
+            Int2ObjectMap.Entry<DisplayLayer> entry = it.next();
+            // Entry is read before removal, because fast entries are invalidated.
+            int id = entry.getIntKey();
+            DisplayLayer layer = entry.getValue();
+            if (layer.isUnused(now)) {
+                it.remove();
+                this.releaseTimes.remove(id);
+                this.parkLayer(id, layer);
             }
-            return false;
-        });
+        }
+
+        ObjectIterator<Int2ObjectMap.Entry<DisplayLayer>> standbyIt = this.standbyLayers.int2ObjectEntrySet().fastIterator();
+        while (standbyIt.hasNext()) {
+            DisplayLayer layer = standbyIt.next().getValue();
+            if (now - layer.lastUse >= STANDBY_TIMEOUT) {
+                standbyIt.remove();
+                this.standbySize -= layer.getMemorySize();
+                layer.free();
+            }
+        }
+
     }
 
     /**
-     * Free and remove all layers.
+     * Free and remove all layers, including suspended ones, pooled textures and audio
+     * sources are also deleted.
      */
     public void clear() {
         this.layers.values().forEach(DisplayLayer::free);
         this.layers.clear();
+        this.standbyLayers.values().forEach(DisplayLayer::free);
+        this.standbyLayers.clear();
+        this.standbySize = 0;
+        this.res.getTexturePool().trim(0);
+        // Freed layers gave their audio sources back to the pool.
+        this.res.freeAudioSources();
+        this.references.clear();
+        this.releaseTimes.clear();
     }
     
     public static class OutOfLayerException extends Exception {}
@@ -1,25 +1,38 @@
 package fr.theorozier.webstreamer.display.render;
 
 import fr.theorozier.webstreamer.WebStreamer;
+import fr.theorozier.webstreamer.display.audio.AudioSink;
+import fr.theorozier.webstreamer.display.audio.AudioStreamingSource;
+import fr.theorozier.webstreamer.display.audio.OpenAlAudioSink;
+import fr.theorozier.webstreamer.util.MonitoredExecutorService;
+import fr.theorozier.webstreamer.util.PriorityExecutorService;
+import fr.theorozier.webstreamer.util.SingleFlightHttpClient;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.lang.reflect.Method;
 import java.net.http.HttpClient;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Different pool types given to {@link DisplayLayerHls} as a centralized way of getting
- * access to heavy heap buffers. This also provides a thread pool executor and an HTTP
- * client in order to reduce overhead when creating them.
+ * Resources shared by all layers, so they are not created by each layer. Heavy heap
+ * buffers of {@link DisplayLayerHls} are pooled. OpenAL sources are pooled too, and given
+ * to the most audible layers. This also provides the executors for network I/O and for
+ * decoding, and the HTTP client. Started grabbers are limited by an admission controller.
  */
 @Environment(EnvType.CLIENT)
 public class DisplayLayerResources {
@@ -28,30 +41,162 @@ public class DisplayLayerResources {
     private static final int AUDIO_BUFFER_SIZE = 8192;
     /** Limit to 512 Kio of audio buffers. */
     private static final int AUDIO_BUFFER_LIMIT = 64;
+    /** Limit of OpenAL sources shared between layers, the sound engine also needs sources. */
+    private static final int AUDIO_SOURCE_LIMIT = 8;
+    /**
+     * A layer takes the audio source of a less audible layer only if it's audible by at least
+     * this ratio more, so sources are not swapped back and forth between layers of similar
+     * audibility, each swap restarting playback and causing an audio gap.
+     */
+    private static final float AUDIO_SOURCE_SWAP_RATIO = 1.25f;
+    /** Sort layers from the most audible to the least audible. */
+    private static final Comparator<DisplayLayer> AUDIBILITY_COMPARATOR =
+        Comparator.comparingDouble(DisplayLayer::getAudibility).reversed();
+    /**
+     * Number of threads for CPU-bound decoding, can be configured with the system property
+     * {@code webstreamer.decodeThreads}, defaults to half the available cores.
+     */
+    private static final int DECODE_THREADS = Math.max(1, Integer.getInteger("webstreamer.decodeThreads",
+        Runtime.getRuntime().availableProcessors() / 2));
 
-    private final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
-        private final AtomicInteger counter = new AtomicInteger();
-        @Override
-        public Thread newThread(@NotNull Runnable r) {
-            return new Thread(r, "WebStreamer Display Queue (" + this.counter.getAndIncrement() + ")");
-        }
-    });
+    /**
+     * Maximum number of started grabbers, can be configured with the system property
+     * {@code webstreamer.grabberLimit}.
+     */
+    private static final int GRABBER_LIMIT = Math.max(1, Integer.getInteger("webstreamer.grabberLimit", 16));
+    /** Maximum number of started grabbers of a single layer: current, prefetched and stopping. */
+    private static final int GRABBER_LAYER_LIMIT = 3;
+
+    /** The audio backend of all buffers and sources. */
+    private final AudioSink audioSink;
+
+    /** Executor for blocking network I/O, tasks should not be CPU-bound. */
+    private final MonitoredExecutorService ioExecutor = new MonitoredExecutorService("io", newIoExecutor());
+    /**
+     * Executor for CPU-bound decoding, bounded to the configured number of threads, queued
+     * tasks are ordered by {@link DisplayTask} priority.
+     */
+    private final PriorityExecutorService decodeExecutor = new PriorityExecutorService("decode",
+        DECODE_THREADS, new NamedThreadFactory("WebStreamer Display Decode"));
 
-    private final HttpClient httpClient = HttpClient.newBuilder()
+    /** Shared HTTP client, where concurrent requests of the same resource are coalesced. */
+    private final SingleFlightHttpClient httpClient = new SingleFlightHttpClient(HttpClient.newBuilder()
         .followRedirects(HttpClient.Redirect.NORMAL)
-        .build();
+        .build());
+    /** Admission of started grabbers. */
+    private final GrabberAdmission grabberAdmission = new GrabberAdmission(GRABBER_LIMIT, GRABBER_LAYER_LIMIT);
+    /** Textures recycled across layers and resolution changes. */
+    private final DisplayTexturePool texturePool = new DisplayTexturePool();
+
     private final List<ShortBuffer> audioBuffers = new ArrayList<>();
 
     private int audioBuffersCount = 0;
 
-    public ExecutorService getExecutor() {
-        return this.executor;
+    private final List<AudioStreamingSource> audioSources = new ArrayList<>();
+    private int audioSourcesCount = 0;
+    /** Temporary list of audible layers, reused on each update of audio sources. */
+    private final List<DisplayLayer> audibleLayers = new ArrayList<>();
+
+    public DisplayLayerResources(AudioSink audioSink) {
+        this.audioSink = audioSink;
+    }
+
+    public DisplayLayerResources() {
+        this(OpenAlAudioSink.INSTANCE);
+    }
+
+    public AudioSink getAudioSink() {
+        return this.audioSink;
+    }
+
+    /**
+     * @return The executor for blocking network I/O that can't be done asynchronously, such
+     * tasks should not be CPU-bound. This executor has no practical limit of concurrent tasks.
+     * Playlists, segments and images are requested through {@link #getSingleFlightClient()}
+     * without blocking any thread.
+     */
+    public MonitoredExecutorService getIoExecutor() {
+        return this.ioExecutor;
+    }
+
+    /**
+     * @return The executor for CPU-bound work, such as FFmpeg decoding. Its number of
+     * threads is bounded, so blocking network I/O must not be done on it. Prefer
+     * {@link #submitDecode(Callable, DisplayTask, float)} to submit prioritized tasks.
+     */
+    public PriorityExecutorService getDecodeExecutor() {
+        return this.decodeExecutor;
+    }
+
+    /**
+     * Submit a task to the decode executor, prioritized by its class and distance. The
+     * task is skipped if the returned future is cancelled before the task starts.
+     * @param task The task to run.
+     * @param taskClass The class of the task.
+     * @param distance The distance between the camera and the display, in blocks.
+     * @return A future of the task's result.
+     */
+    public <T> CompletableFuture<T> submitDecode(Callable<T> task, DisplayTask taskClass, float distance) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        this.decodeExecutor.execute(() -> {
+            if (!future.isDone()) {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }, taskClass.getDelay(distance));
+        return future;
+    }
+
+    /** Execute a task on the decode executor, prioritized by its class and distance. */
+    public void executeDecode(Runnable task, DisplayTask taskClass, float distance) {
+        this.decodeExecutor.execute(task, taskClass.getDelay(distance));
+    }
+
+    /**
+     * Execute a reusable task on the decode executor, prioritized by its class and distance,
+     * without allocating. The task must not be queued or running.
+     */
+    public void executeDecode(PriorityExecutorService.Task task, DisplayTask taskClass, float distance) {
+        this.decodeExecutor.execute(task, taskClass.getDelay(distance));
+    }
+
+    /** @return The number of threads of the decode executor. */
+    public int getDecodeThreads() {
+        return DECODE_THREADS;
     }
 
     public HttpClient getHttpClient() {
+        return this.httpClient.getClient();
+    }
+
+    /**
+     * @return The shared HTTP client coalescing concurrent GET requests of the same
+     * resource, this should be preferred for playlists, segments and images, that might
+     * be requested at the same time by different layers or screens.
+     */
+    public SingleFlightHttpClient getSingleFlightClient() {
         return this.httpClient;
     }
 
+    /**
+     * @return The admission controller, a permit must be acquired before starting any
+     * {@link FrameGrabber}.
+     */
+    public GrabberAdmission getGrabberAdmission() {
+        return this.grabberAdmission;
+    }
+
+    /**
+     * @return The pool of display textures, keyed by their storage. <b>Must be used from
+     * render thread.</b>
+     */
+    public DisplayTexturePool getTexturePool() {
+        return this.texturePool;
+    }
+
     /**
      * Allocate a sound buffer. Such buffers are backed by a native memory in
      * order to be directly used as OpenAL buffer data.
@@ -77,4 +222,133 @@ public class DisplayLayerResources {
         }
     }
 
+    /**
+     * Allocate an OpenAL audio source from the shared pool. <b>Must be called from
+     * render thread.</b>
+     * @return The audio source, or null if the limit of sources has been reached.
+     */
+    @Nullable
+    public AudioStreamingSource allocAudioSource() {
+        if (!this.audioSources.isEmpty()) {
+            return this.audioSources.remove(this.audioSources.size() - 1);
+        } else if (this.audioSourcesCount >= AUDIO_SOURCE_LIMIT) {
+            return null;
+        }
+        this.audioSourcesCount++;
+        WebStreamer.LOGGER.debug("Number of allocated audio sources: {}", this.audioSourcesCount);
+        return new AudioStreamingSource(this.audioSink);
+    }
+
+    /**
+     * Stop the given audio source and give it back to the shared pool. <b>Must be called
+     * from render thread.</b>
+     */
+    public void freeAudioSource(AudioStreamingSource source) {
+        source.stop();
+        this.audioSources.add(source);
+    }
+
+    /**
+     * Delete the pooled audio sources, sources still given to layers are not deleted.
+     * <b>Must be called from render thread.</b>
+     */
+    public void freeAudioSources() {
+        for (AudioStreamingSource source : this.audioSources) {
+            source.free();
+        }
+        this.audioSourcesCount -= this.audioSources.size();
+        this.audioSources.clear();
+        WebStreamer.LOGGER.debug("Number of allocated audio sources: {}", this.audioSourcesCount);
+    }
+
+    /**
+     * Give the shared audio sources to the most audible layers. When all sources are given,
+     * a source is taken back from a layer no longer in the most audible ones only if the
+     * layer waiting for it is clearly more audible, see {@link #AUDIO_SOURCE_SWAP_RATIO}.
+     * <b>Must be called from render thread.</b>
+     * @param layers All the active layers.
+     */
+    public void updateAudioSources(Collection<DisplayLayer> layers) {
+
+        this.audibleLayers.clear();
+        for (DisplayLayer layer : layers) {
+            if (layer.getAudibility() > 0f) {
+                this.audibleLayers.add(layer);
+            } else {
+                this.takeAudioSource(layer);
+            }
+        }
+
+        this.audibleLayers.sort(AUDIBILITY_COMPARATOR);
+
+        int count = Math.min(AUDIO_SOURCE_LIMIT, this.audibleLayers.size());
+        // Index of the least audible layer that may still give back its source.
+        int holderIndex = this.audibleLayers.size();
+        for (int i = 0; i < count; ++i) {
+            DisplayLayer layer = this.audibleLayers.get(i);
+            if (layer.getAudioSource() == null) {
+                AudioStreamingSource source = this.allocAudioSource();
+                if (source == null) {
+                    // All sources are given, some to layers that are no longer in the most
+                    // audible ones, the least audible of these gives back its source.
+                    do {
+                        holderIndex--;
+                    } while (holderIndex >= count && this.audibleLayers.get(holderIndex).getAudioSource() == null);
+                    if (holderIndex < count) {
+                        break;
+                    }
+                    DisplayLayer holder = this.audibleLayers.get(holderIndex);
+                    // Layers are sorted, so the following layers are not more audible.
+                    if (layer.getAudibility() < holder.getAudibility() * AUDIO_SOURCE_SWAP_RATIO) {
+                        break;
+                    }
+                    this.takeAudioSource(holder);
+                    source = this.allocAudioSource();
+                }
+                layer.setAudioSource(source);
+            }
+        }
+
+        this.audibleLayers.clear();
+
+    }
+
+    private void takeAudioSource(DisplayLayer layer) {
+        AudioStreamingSource source = layer.getAudioSource();
+        if (source != null) {
+            layer.setAudioSource(null);
+            this.freeAudioSource(source);
+        }
+    }
+
+    /**
+     * Create the executor for blocking I/O, using virtual threads when the runtime supports
+     * them (Java 21+), or else falling back to a cached thread pool.
+     */
+    private static ExecutorService newIoExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            WebStreamer.LOGGER.info("Using virtual threads for display I/O.");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(new NamedThreadFactory("WebStreamer Display IO"));
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(@NotNull Runnable r) {
+            return new Thread(r, this.name + " (" + this.counter.getAndIncrement() + ")");
+        }
+
+    }
+
 }
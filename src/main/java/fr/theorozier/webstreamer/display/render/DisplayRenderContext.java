@@ -0,0 +1,84 @@
+package fr.theorozier.webstreamer.display.render;
+
+import fr.theorozier.webstreamer.WebStreamer;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.minecraft.client.Camera;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.culling.Frustum;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.phys.Vec3;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>State shared by all displays rendered in a frame, so it's not recomputed for each
+ * display. The player state is updated once per client tick, and the camera state once
+ * per frame, before block entities are rendered.</p>
+ * <p><b>Must be used from render thread.</b></p>
+ */
+@Environment(EnvType.CLIENT)
+public class DisplayRenderContext {
+
+    /** True if the player has a display item in any of its slots, as of the last tick. */
+    private boolean displayEquipped;
+
+    private Camera camera;
+    private BlockPos cameraBlockPos = BlockPos.ZERO;
+    private Vec3 cameraPosition = Vec3.ZERO;
+    private Frustum frustum;
+
+    /** Update the player state, called at the end of each client tick. */
+    public void tick(Minecraft client) {
+        this.displayEquipped = false;
+        Player player = client.player;
+        if (player != null) {
+            for (ItemStack stack : player.getAllSlots()) {
+                if (stack.is(WebStreamer.DISPLAY_ITEM)) {
+                    this.displayEquipped = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the camera state, called once per frame before block entities are rendered.
+     * @param camera The camera of the frame.
+     * @param frustum The frustum of the frame, if known.
+     */
+    public void setup(Camera camera, @Nullable Frustum frustum) {
+        this.camera = camera;
+        this.cameraBlockPos = camera.getBlockPosition();
+        this.cameraPosition = camera.getPosition();
+        this.frustum = frustum;
+    }
+
+    /** @return True if the player has a display item equipped, to show outlines and status. */
+    public boolean isDisplayEquipped() {
+        return this.displayEquipped;
+    }
+
+    /** @return The camera of the frame, or the main camera if not yet set up. */
+    public Camera getCamera() {
+        return this.camera != null ? this.camera : Minecraft.getInstance().gameRenderer.getMainCamera();
+    }
+
+    /** @return The block position of the camera, as of the frame setup. */
+    public BlockPos getCameraBlockPos() {
+        return this.cameraBlockPos;
+    }
+
+    /** @return The exact position of the camera, as of the frame setup. */
+    public Vec3 getCameraPosition() {
+        return this.cameraPosition;
+    }
+
+    /** @return The frustum of the frame, or null if not known. */
+    @Nullable
+    public Frustum getFrustum() {
+        return this.frustum;
+    }
+
+}
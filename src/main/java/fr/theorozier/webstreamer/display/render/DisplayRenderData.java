@@ -3,6 +3,7 @@ package fr.theorozier.webstreamer.display.render;
 import fr.theorozier.webstreamer.WebStreamer;
 import fr.theorozier.webstreamer.WebStreamerClient;
 import fr.theorozier.webstreamer.display.DisplayBlockEntity;
+import fr.theorozier.webstreamer.display.source.DisplaySource;
 import fr.theorozier.webstreamer.display.url.DisplayUrl;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
@@ -19,8 +20,13 @@ public class DisplayRenderData {
     private final DisplayBlockEntity display;
 
     private boolean sourceDirty;
-    private Future<URI> futureUrl;
+    private Future<SourceUri> futureUrl;
     private DisplayUrl url;
+    /**
+     * The URL before the source was marked dirty, its layer is only released once the new
+     * URL is known, so a refreshed URL of the same stream keeps its layer.
+     */
+    private DisplayUrl previousUrl;
 
     private float lastWidth = 0f;
     private float lastHeight = 0f;
@@ -28,6 +34,11 @@ public class DisplayRenderData {
     private float widthOffset = 0f;
     private float heightOffset = 0f;
 
+    /** Time in nanoseconds (monotonic) of the last occlusion test, by {@link DisplayCulling}. */
+    long occlusionCheckTime = Long.MIN_VALUE;
+    /** True if the display was occluded on the last occlusion test. */
+    boolean occluded;
+
     public DisplayRenderData(DisplayBlockEntity display) {
         this.display = display;
         this.sourceDirty = true;
@@ -50,18 +61,28 @@ public class DisplayRenderData {
     public DisplayUrl getUrl(ExecutorService executor) {
 
         if (this.sourceDirty) {
-            this.url = null;
-            this.futureUrl = executor.submit(() -> this.display.getSource().getUri());
+            if (this.url != null) {
+                this.releasePreviousUrl();
+                this.previousUrl = this.url;
+                this.url = null;
+            }
+            this.futureUrl = executor.submit(() -> {
+                DisplaySource source = this.display.getSource();
+                URI uri = source.getUri();
+                return uri == null ? null : new SourceUri(uri, source.getStreamKey(uri));
+            });
             this.sourceDirty = false;
         }
 
         if (this.futureUrl != null && this.futureUrl.isDone()) {
             try {
-                URI uri = this.futureUrl.get();
-                if (uri == null) {
+                SourceUri sourceUri = this.futureUrl.get();
+                if (sourceUri == null) {
                     WebStreamer.LOGGER.info(this.display.makeLog("No URI found for the display."));
                 } else {
-                    this.url = WebStreamerClient.DISPLAY_URLS.allocUri(uri);
+                    this.url = WebStreamerClient.DISPLAY_URLS.allocUri(sourceUri.uri, sourceUri.streamKey);
+                    WebStreamerClient.DISPLAY_LAYERS.acquireLayer(this.url);
+                    WebStreamerClient.DISPLAY_LAYERS.updateLayerUrl(this.url);
                 }
             } catch (InterruptedException | CancellationException e) {
                 // Cancel should not happen.
@@ -69,6 +90,7 @@ public class DisplayRenderData {
                 WebStreamer.LOGGER.warn(this.display.makeLog("Unhandled error while getting source uri."), e);
             } finally {
                 this.futureUrl = null;
+                this.releasePreviousUrl();
             }
         }
 
@@ -76,6 +98,37 @@ public class DisplayRenderData {
 
     }
 
+    /**
+     * Release the layer referenced by this display, this is called when the display is
+     * unloaded. The URL is requested again if the display is rendered later.
+     * <b>Must be called from render thread.</b>
+     */
+    public void release() {
+        this.releaseUrl();
+        this.releasePreviousUrl();
+        if (this.futureUrl != null) {
+            this.futureUrl.cancel(true);
+            this.futureUrl = null;
+        }
+        this.sourceDirty = true;
+    }
+
+    private void releaseUrl() {
+        if (this.url != null) {
+            WebStreamerClient.DISPLAY_LAYERS.releaseLayer(this.url);
+            WebStreamerClient.DISPLAY_URLS.releaseUrl(this.url);
+            this.url = null;
+        }
+    }
+
+    private void releasePreviousUrl() {
+        if (this.previousUrl != null) {
+            WebStreamerClient.DISPLAY_LAYERS.releaseLayer(this.previousUrl);
+            WebStreamerClient.DISPLAY_URLS.releaseUrl(this.previousUrl);
+            this.previousUrl = null;
+        }
+    }
+
     public float getWidthOffset() {
         float width = this.display.getWidth();
         if (width != this.lastWidth) {
@@ -94,4 +147,7 @@ public class DisplayRenderData {
         return heightOffset;
     }
 
+    /** The URI of a source with its stream key, resolved together. */
+    private record SourceUri(URI uri, String streamKey) { }
+
 }
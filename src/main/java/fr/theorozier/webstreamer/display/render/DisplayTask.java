@@ -0,0 +1,45 @@
+package fr.theorozier.webstreamer.display.render;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+/**
+ * Classes of tasks submitted to the decode executor of {@link DisplayLayerResources},
+ * from the most urgent to the least urgent.
+ */
+@Environment(EnvType.CLIENT)
+public enum DisplayTask {
+
+    /** Decoding the next frame of the playing segment. */
+    FRAME(0L),
+    /** Starting the grabber of the segment that is about to play. */
+    CURRENT_SEGMENT(0L),
+    /** Stopping a detached grabber, this releases its FFmpeg context and admission permit. */
+    STOP(0L),
+    /** Starting the grabber of a following segment. */
+    PREFETCH(1000000000L),
+    /** Decoding a static image. */
+    IMAGE(2000000000L);
+
+    /** Additional delay for each block of distance between the display and the camera. */
+    private static final long DISTANCE_DELAY = 10000000L;
+    /** Maximum distance taken into account, in blocks. */
+    private static final float MAX_DISTANCE = 256f;
+
+    /** The priority delay of this task class, in nanoseconds. */
+    private final long delay;
+
+    DisplayTask(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Get the priority delay of this task for a display at the given distance.
+     * @param distance The distance between the display and the camera, in blocks.
+     * @return The priority delay, in nanoseconds, lower is more urgent.
+     */
+    public long getDelay(float distance) {
+        return this.delay + (long) (Math.min(distance, MAX_DISTANCE) * DISTANCE_DELAY);
+    }
+
+}
@@ -1,44 +1,147 @@
 package fr.theorozier.webstreamer.display.render;
 
 import com.mojang.blaze3d.platform.GlStateManager;
+import com.mojang.blaze3d.platform.TextureUtil;
 import com.mojang.blaze3d.systems.RenderSystem;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
+import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.texture.AbstractTexture;
 import net.minecraft.server.packs.resources.ResourceManager;
 import org.bytedeco.javacv.Frame;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL12;
 import org.lwjgl.opengl.GL14;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
 
 import java.nio.ByteBuffer;
 
 @Environment(EnvType.CLIENT)
 public class DisplayTexture extends AbstractTexture {
 
+    /** Maximum number of mip levels above the full resolution, zero to disable mipmaps. */
+    private static final int MIPMAP_LEVELS = Math.max(0, Integer.getInteger("webstreamer.mipmapLevels", 4));
+    /** Minimum minification for the mip chain to be regenerated on full resolution uploads. */
+    private static final float MIPMAP_MINIFICATION = 0.75f;
+
+    /** Pool where the texture object is given back with its storage, and taken on resolution changes. */
+    private final DisplayTexturePool pool;
+
     private int width = -1, height = -1;
     private int format = -1;
+    /** Number of mip levels above the full resolution in the current storage. */
+    private int levels;
+
+    /** Ring of staging buffers for frame uploads, created on the first frame upload. */
+    private PixelBufferRing ring;
+    /** Size in bytes of the last uploaded frame, used to size staging buffers. */
+    private int frameSize;
 
-    public DisplayTexture() {
+    public DisplayTexture(DisplayTexturePool pool) {
+        this.pool = pool;
         GlStateManager._bindTexture(this.getId());
+        setupParameters();
+    }
+
+    /** Setup the parameters of the bound texture, pooled textures keep them. */
+    private static void setupParameters() {
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, 0);
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MIN_LOD, 0);
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LOD, 0);
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL14.GL_TEXTURE_LOD_BIAS, 0.0F);
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP);
         GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
     }
 
-    private void uploadBind(int internalFormat, int width, int height, int dataWidth, int alignment) {
+    /**
+     * Restrict sampling of the bound texture to the given mip levels, with trilinear
+     * filtering if more than one level is sampled.
+     */
+    private static void setSampledLevels(int baseLevel, int maxLevel) {
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_BASE_LEVEL, baseLevel);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, maxLevel);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LOD, maxLevel - baseLevel);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, maxLevel > baseLevel ? GL11.GL_LINEAR_MIPMAP_LINEAR : GL11.GL_LINEAR);
+    }
 
-        GlStateManager._bindTexture(this.getId());
+    /**
+     * Update the mip chain of the bound texture after a full resolution upload.
+     * @param generate True to regenerate the chain and sample it, false to only sample
+     *                 the full resolution.
+     */
+    private void updateMipmaps(boolean generate) {
+        if (generate && this.levels > 0) {
+            setSampledLevels(0, this.levels);
+            GL30.glGenerateMipmap(GL11.GL_TEXTURE_2D);
+        } else {
+            setSampledLevels(0, 0);
+        }
+    }
+
+    /** @return The number of mip levels above the full resolution for a storage of the given size. */
+    private static int getLevels(int width, int height) {
+        return Math.min(MIPMAP_LEVELS, 31 - Integer.numberOfLeadingZeros(Math.max(1, Math.max(width, height))));
+    }
+
+    /**
+     * @return An estimation of the GPU memory used by this texture, in bytes. Drivers
+     * usually pad RGB texels to 4 bytes, so 4 bytes per texel are assumed.
+     */
+    public long getMemorySize() {
+        long size = this.width < 0 ? 0 : getMemorySize(this.width, this.height);
+        if (this.ring != null) {
+            size += this.ring.getMemorySize();
+        }
+        return size;
+    }
+
+    /** @return An estimation of the GPU memory used by a texture of the given size, in bytes. */
+    public static long getMemorySize(int width, int height) {
+        long size = 0;
+        for (int level = 0, levels = getLevels(width, height); level <= levels; level++) {
+            size += (long) Math.max(1, width >> level) * Math.max(1, height >> level) * 4;
+        }
+        return size;
+    }
+
+    /** The texture object is given back to the pool if its storage is allocated, or deleted. */
+    @Override
+    public void releaseId() {
+        RenderSystem.assertOnRenderThread();
+        if (this.id != -1 && this.width >= 0) {
+            this.pool.give(this.width, this.height, this.format, this.id);
+            this.id = -1;
+            this.width = -1;
+            this.height = -1;
+            this.format = -1;
+        }
+        super.releaseId();
+        if (this.ring != null) {
+            this.ring.free();
+            this.ring = null;
+        }
+    }
+
+    @Nullable
+    private PixelBufferRing getRing() {
+        if (this.ring == null && PixelBufferRing.RING_SIZE > 0 && this.id != -1) {
+            this.ring = new PixelBufferRing();
+        }
+        return this.ring;
+    }
+
+    private void uploadBind(int internalFormat, int width, int height, int dataWidth, int alignment) {
 
         if (this.width != width || this.height != height || this.format != internalFormat) {
-            GlStateManager._texImage2D(GL11.GL_TEXTURE_2D, 0, internalFormat, width, height, 0, GL12.GL_BGR, GL11.GL_UNSIGNED_BYTE, null);
-            this.width = width;
-            this.height = height;
-            this.format = internalFormat;
+            this.reallocate(internalFormat, width, height);
+        } else {
+            GlStateManager._bindTexture(this.getId());
         }
 
         GlStateManager._pixelStore(GL11.GL_UNPACK_ALIGNMENT, alignment);
@@ -46,22 +149,268 @@ public class DisplayTexture extends AbstractTexture {
         GlStateManager._pixelStore(GL11.GL_UNPACK_SKIP_ROWS, 0);
         GlStateManager._pixelStore(GL11.GL_UNPACK_SKIP_PIXELS, 0);
 
-        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
-        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+    }
+
+    /**
+     * Switch to a texture object with the given storage, taken from the pool if possible,
+     * the current one is given back to the pool. The new texture is left bound.
+     */
+    private void reallocate(int internalFormat, int width, int height) {
+
+        int pooledId = this.pool.take(width, height, internalFormat);
+
+        if (this.width >= 0) {
+            // Kept for another layer, or to switch back to this resolution.
+            this.pool.give(this.width, this.height, this.format, this.getId());
+            this.id = pooledId;
+        } else if (pooledId != -1) {
+            // The initial texture has no storage, it's replaced.
+            TextureUtil.releaseTextureId(this.getId());
+            this.id = pooledId;
+        }
+
+        // A new texture is generated by getId() if none is pooled.
+        GlStateManager._bindTexture(this.getId());
+        this.levels = getLevels(width, height);
+        if (pooledId == -1) {
+            setupParameters();
+            for (int level = 0; level <= this.levels; level++) {
+                GlStateManager._texImage2D(GL11.GL_TEXTURE_2D, level, internalFormat, Math.max(1, width >> level), Math.max(1, height >> level), 0, GL12.GL_BGR, GL11.GL_UNSIGNED_BYTE, null);
+            }
+        }
+
+        this.width = width;
+        this.height = height;
+        this.format = internalFormat;
 
     }
 
+    /** Upload a still image, its mip chain is generated once. */
     public void uploadRaw(ByteBuffer data, int internalFormat, int width, int height, int dataWidth, int dataFormat, int alignment) {
+        this.uploadDirect(data, internalFormat, width, height, dataWidth, dataFormat, alignment);
+        this.updateMipmaps(true);
+    }
+
+    private void uploadDirect(ByteBuffer data, int internalFormat, int width, int height, int dataWidth, int dataFormat, int alignment) {
         RenderSystem.assertOnRenderThread();
         this.uploadBind(internalFormat, width, height, dataWidth, alignment);
         GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, width, height, dataFormat, GL11.GL_UNSIGNED_BYTE, data);
     }
 
+    /**
+     * Upload from a staging buffer, the transfer is done asynchronously by the driver and a
+     * fence is placed so the buffer is not reused before it completes.
+     */
+    private void uploadStaged(PixelBufferRing.Slot slot, int internalFormat, int width, int height, int dataWidth, int dataFormat, int alignment) {
+        RenderSystem.assertOnRenderThread();
+        this.uploadBind(internalFormat, width, height, dataWidth, alignment);
+        GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, slot.getId());
+        GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, width, height, dataFormat, GL11.GL_UNSIGNED_BYTE, 0L);
+        GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+        this.ring.fence(slot);
+    }
+
+    private static boolean isFrameSupported(Frame frame) {
+        return frame.image != null && frame.imageDepth == Frame.DEPTH_UBYTE && frame.imageChannels == 3;
+    }
+
+    /**
+     * Acquire a staging buffer for the next frame, sized from the last uploaded one. It can
+     * be filled with {@link #stage(PixelBufferRing.Slot, Frame)} from any thread, and must be
+     * given back with {@link #upload(Frame, PixelBufferRing.Slot)} or released.
+     * <b>Must be called from render thread.</b>
+     * @return The staging buffer, or null if not available, the frame is then staged on upload.
+     */
+    @Nullable
+    public PixelBufferRing.Slot acquireStaging() {
+        PixelBufferRing ring = this.getRing();
+        if (ring == null || this.frameSize == 0) {
+            return null;
+        }
+        return ring.acquire(this.frameSize);
+    }
+
+    /** Copy the image of a frame to a staging buffer, this can be called from any thread. */
+    public static void stage(PixelBufferRing.Slot slot, Frame frame) {
+        if (isFrameSupported(frame)) {
+            slot.write((ByteBuffer) frame.image[0]);
+        }
+    }
+
+    /**
+     * Estimate how much this texture is minified on screen, that is the number of texels
+     * per screen pixel along each axis, for a display of the given apparent size.
+     * <b>Must be called from render thread.</b>
+     * @param apparentSize The apparent size of the display from its euclidean distance to the
+     *                     camera, see {@link DisplayLayer#getApparentSize(float, float)}.
+     * @return The minification, zero if unknown.
+     */
+    public float getMinification(float apparentSize) {
+        if (this.width < 0 || apparentSize <= 0f) {
+            return 0f;
+        }
+        Minecraft client = Minecraft.getInstance();
+        // Twice the tangent of half the vertical field of view configured by the player.
+        double fovFactor = 2.0 * Math.tan(Math.toRadians(client.options.fov().get()) / 2.0);
+        // Projected size of the display on screen, in pixels.
+        double pixels = Math.sqrt(apparentSize) * client.getWindow().getHeight() / fovFactor;
+        return (float) (Math.sqrt((double) this.width * this.height) / pixels);
+    }
+
+    /**
+     * @param minification The minification, see {@link #getMinification(float)}.
+     * @return The mip level that is sampled at the given minification, frames are only
+     * uploaded to that level when it's not the full resolution.
+     */
+    public int getLod(float minification) {
+        if (this.levels == 0 || minification < 2f) {
+            return 0;
+        }
+        return Math.min(this.levels, 31 - Integer.numberOfLeadingZeros((int) minification));
+    }
+
     public void upload(Frame frame) {
-        if (frame.imageDepth == Frame.DEPTH_UBYTE && frame.imageChannels == 3) {
-            ByteBuffer data = (ByteBuffer) frame.image[0];
-            this.uploadRaw(data, GL11.GL_RGB8, frame.imageWidth, frame.imageHeight, frame.imageStride / 3, GL12.GL_BGR, 4);
+        this.upload(frame, null, 0f);
+    }
+
+    /**
+     * Upload a frame, from the given staging buffer if the frame has been staged in it, or
+     * staged now on the render thread, or directly if no staging buffer is available.
+     * @param frame The frame to upload.
+     * @param staging The staging buffer acquired for this frame, it's given back.
+     * @param minification The minification of the texture, the mip chain is only regenerated
+     *                     if it's sampled.
+     */
+    public void upload(Frame frame, @Nullable PixelBufferRing.Slot staging, float minification) {
+
+        if (!isFrameSupported(frame)) {
+            if (staging != null) {
+                staging.release();
+            }
+            return;
+        }
+
+        ByteBuffer data = (ByteBuffer) frame.image[0];
+        this.frameSize = data.remaining();
+
+        if (staging == null || !staging.isWritten(this.frameSize)) {
+            if (staging != null) {
+                staging.release();
+            }
+            PixelBufferRing ring = this.getRing();
+            staging = ring == null ? null : ring.stage(data);
+            if (staging != null && !staging.isWritten(this.frameSize)) {
+                // Mapping failed.
+                staging.release();
+                staging = null;
+            }
+        }
+
+        if (staging == null) {
+            this.uploadDirect(data, GL11.GL_RGB8, frame.imageWidth, frame.imageHeight, frame.imageStride / 3, GL12.GL_BGR, 4);
+        } else {
+            this.uploadStaged(staging, GL11.GL_RGB8, frame.imageWidth, frame.imageHeight, frame.imageStride / 3, GL12.GL_BGR, 4);
         }
+
+        this.updateMipmaps(minification >= MIPMAP_MINIFICATION);
+
+    }
+
+    /**
+     * Upload a frame reduced to a mip level, only that level is updated and sampled, the
+     * full resolution is not uploaded.
+     * @param image The reduced image, it's reset once uploaded.
+     */
+    public void upload(ReducedImage image) {
+        if (image.lod > 0) {
+            RenderSystem.assertOnRenderThread();
+            this.uploadBind(GL11.GL_RGB8, image.fullWidth, image.fullHeight, image.width, 1);
+            if (image.lod <= this.levels) {
+                GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, image.lod, 0, 0, image.width, image.height, GL12.GL_BGR, GL11.GL_UNSIGNED_BYTE, image.buffer);
+                setSampledLevels(image.lod, image.lod);
+            }
+            image.reset();
+        }
+    }
+
+    /**
+     * A frame image reduced to a mip level by a box filter, so far displays don't upload
+     * the full resolution. Its buffer is reused between frames, it's filled by a decode
+     * thread and then uploaded by the render thread.
+     */
+    public static class ReducedImage {
+
+        private ByteBuffer buffer;
+        private int width, height;
+        private int fullWidth, fullHeight;
+        /** The mip level of the image, zero if there is no image to upload. */
+        private int lod;
+
+        /** @return True if a reduced image is ready to be uploaded. */
+        public boolean isReduced() {
+            return this.lod > 0;
+        }
+
+        public void reset() {
+            this.lod = 0;
+        }
+
+        /**
+         * Reduce the image of a frame to the given mip level, each pixel is the average of
+         * the corresponding square of full resolution pixels.
+         * @param frame The frame to reduce.
+         * @param lod The mip level, strictly positive.
+         */
+        public void reduce(Frame frame, int lod) {
+
+            if (!isFrameSupported(frame)) {
+                this.lod = 0;
+                return;
+            }
+
+            ByteBuffer src = (ByteBuffer) frame.image[0];
+            int srcStride = frame.imageStride;
+            int fullWidth = frame.imageWidth;
+            int fullHeight = frame.imageHeight;
+            int width = Math.max(1, fullWidth >> lod);
+            int height = Math.max(1, fullHeight >> lod);
+            int box = 1 << lod;
+
+            int size = width * height * 3;
+            if (this.buffer == null || this.buffer.capacity() < size) {
+                this.buffer = ByteBuffer.allocateDirect(size);
+            }
+
+            ByteBuffer dst = this.buffer;
+            for (int y = 0; y < height; y++) {
+                int sy0 = y * box, sy1 = Math.min(fullHeight, sy0 + box);
+                for (int x = 0; x < width; x++) {
+                    int sx0 = x * box, sx1 = Math.min(fullWidth, sx0 + box);
+                    int b = 0, g = 0, r = 0;
+                    for (int sy = sy0; sy < sy1; sy++) {
+                        int i = sy * srcStride + sx0 * 3;
+                        for (int sx = sx0; sx < sx1; sx++, i += 3) {
+                            b += src.get(i) & 0xFF;
+                            g += src.get(i + 1) & 0xFF;
+                            r += src.get(i + 2) & 0xFF;
+                        }
+                    }
+                    int count = (sy1 - sy0) * (sx1 - sx0);
+                    int o = (y * width + x) * 3;
+                    dst.put(o, (byte) (b / count));
+                    dst.put(o + 1, (byte) (g / count));
+                    dst.put(o + 2, (byte) (r / count));
+                }
+            }
+
+            this.width = width;
+            this.height = height;
+            this.fullWidth = fullWidth;
+            this.fullHeight = fullHeight;
+            this.lod = lod;
+
+        }
+
     }
 
     @Override
@@ -0,0 +1,91 @@
+package fr.theorozier.webstreamer.display.render;
+
+import com.mojang.blaze3d.platform.TextureUtil;
+import com.mojang.blaze3d.systems.RenderSystem;
+import fr.theorozier.webstreamer.WebStreamer;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Pool of display texture objects with their storage already allocated, keyed by width,
+ * height and internal format. Textures are given back when a layer is freed or when it
+ * switches to another resolution, and are taken again by any layer needing the same
+ * storage, so the storage is not reallocated.</p>
+ * <p>The pool is bounded by a memory budget, the least recently given textures are
+ * deleted first. <b>Must be used from render thread.</b></p>
+ */
+@Environment(EnvType.CLIENT)
+public class DisplayTexturePool {
+
+    /** Memory budget of pooled textures, in bytes, configured in MiB. */
+    private static final long BUDGET = Math.max(0, Integer.getInteger("webstreamer.texturePoolBudget", 64)) * 1024L * 1024L;
+
+    /** Pooled textures, from the least recently given. */
+    private final List<Entry> entries = new ArrayList<>();
+    private long size;
+
+    /**
+     * Take a texture with the given storage from the pool.
+     * @return The texture id, or -1 if no such texture is pooled.
+     */
+    public int take(int width, int height, int format) {
+        RenderSystem.assertOnRenderThread();
+        // From the most recently given, which are the most likely to be resident.
+        for (int i = this.entries.size() - 1; i >= 0; i--) {
+            Entry entry = this.entries.get(i);
+            if (entry.width == width && entry.height == height && entry.format == format) {
+                this.entries.remove(i);
+                this.size -= entry.getMemorySize();
+                return entry.id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Give a texture with its storage to the pool, the least recently given textures are
+     * deleted if the budget is exceeded.
+     */
+    public void give(int width, int height, int format, int id) {
+        RenderSystem.assertOnRenderThread();
+        Entry entry = new Entry(width, height, format, id);
+        this.entries.add(entry);
+        this.size += entry.getMemorySize();
+        this.trim(BUDGET);
+    }
+
+    /**
+     * Delete the least recently given textures until the pool fits the given size.
+     * @param maxSize The maximum size of the pool, in bytes.
+     * @return The memory freed, in bytes.
+     */
+    public long trim(long maxSize) {
+        RenderSystem.assertOnRenderThread();
+        long freed = 0;
+        while (this.size > maxSize && !this.entries.isEmpty()) {
+            Entry entry = this.entries.remove(0);
+            TextureUtil.releaseTextureId(entry.id);
+            this.size -= entry.getMemorySize();
+            freed += entry.getMemorySize();
+        }
+        if (freed != 0) {
+            WebStreamer.LOGGER.debug("Deleted pooled display textures: {} KiB", freed >> 10);
+        }
+        return freed;
+    }
+
+    /** @return The memory used by pooled textures, in bytes. */
+    public long getMemorySize() {
+        return this.size;
+    }
+
+    private record Entry(int width, int height, int format, int id) {
+        long getMemorySize() {
+            return DisplayTexture.getMemorySize(this.width, this.height);
+        }
+    }
+
+}
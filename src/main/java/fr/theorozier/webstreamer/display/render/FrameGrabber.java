@@ -8,11 +8,7 @@ import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.Frame;
 
 import java.io.*;
-import java.net.URI;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.ShortBuffer;
-import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.function.Consumer;
 
@@ -26,9 +22,16 @@ import java.util.function.Consumer;
 public class FrameGrabber {
 
     private final DisplayLayerResources pools;
-    private final URI uri;
+    /** Admission permit of this grabber, released when stopped or if the start fails. */
+    private final GrabberAdmission.Permit permit;
     private final String name;
     private final byte[] initBytes;
+    /** Bytes of the segment, released once started. */
+    private byte[] bytes;
+    /** Size of the segment and its init section, in bytes. */
+    private final long segmentSize;
+    /** Size of a decoded image frame, in bytes, known once started. */
+    private long frameSize;
 
     private FFmpegFrameGrabber grabber;
     private long refTimestamp;
@@ -36,28 +39,41 @@ public class FrameGrabber {
     private Frame lastFrame;
 
     private ShortBuffer tempAudioBuffer;
+    /** False to discard audio packets at demux level, without decoding them. */
+    private boolean audio = true;
 
     private ArrayDeque<AudioStreamingBuffer> startAudioBuffers;
 
-    public FrameGrabber(DisplayLayerResources pools, URI uri, String name, byte[] initBytes) {
+    /**
+     * Create a frame grabber for a downloaded segment.
+     * @param permit The admission permit acquired for this grabber, now owned by this grabber.
+     * @param bytes The bytes of the segment, only read, so they can be shared.
+     */
+    public FrameGrabber(DisplayLayerResources pools, GrabberAdmission.Permit permit, String name, byte[] initBytes, byte[] bytes) {
         this.pools = pools;
-        this.uri = uri;
+        this.permit = permit;
         this.name = name;
         this.initBytes = initBytes;
+        this.bytes = bytes;
+        this.segmentSize = bytes.length + (initBytes == null ? 0 : initBytes.length);
     }
 
+    /**
+     * Start decoding the downloaded segment until the first image frame, this is CPU-bound.
+     */
     public void start() throws IOException {
 
         if (this.grabber != null) {
             throw new IllegalStateException("already started");
+        } else if (this.bytes == null) {
+            throw new IllegalStateException("segment bytes already released");
         }
 
         try {
 
-            HttpRequest req = HttpRequest.newBuilder(this.uri).GET().timeout(Duration.ofSeconds(1)).build();
-            final byte[] buffer = this.pools.getHttpClient().send(req, HttpResponse.BodyHandlers.ofByteArray()).body();
-
-            InputStream inputStream = new ByteArrayInputStream(buffer);
+            InputStream inputStream = new ByteArrayInputStream(this.bytes);
+            // The bytes are now owned by the input stream.
+            this.bytes = null;
             if (initBytes != null) {
                 inputStream = new SequenceInputStream(new ByteArrayInputStream(initBytes), inputStream);
             }
@@ -68,6 +84,7 @@ public class FrameGrabber {
 
             this.grabber = new FFmpegFrameGrabber(inputStream);
             this.grabber.startUnsafe();
+            this.frameSize = (long) this.grabber.getImageWidth() * this.grabber.getImageHeight() * 3;
 
             this.tempAudioBuffer = this.pools.allocAudioBuffer();
 
@@ -84,11 +101,11 @@ public class FrameGrabber {
                     this.lastFrame = frame;
                     break;
                 } else if (frame.samples != null) {
-                    this.startAudioBuffers.addLast(AudioStreamingBuffer.fromFrame(this.tempAudioBuffer, frame));
+                    this.startAudioBuffers.addLast(AudioStreamingBuffer.fromFrame(this.pools.getAudioSink(), this.tempAudioBuffer, frame));
                 }
             }
 
-        } catch (IOException | InterruptedException | RuntimeException e) {
+        } catch (IOException | RuntimeException e) {
 
             if (this.grabber != null) {
                 this.grabber.releaseUnsafe();
@@ -99,9 +116,9 @@ public class FrameGrabber {
                 this.tempAudioBuffer = null;
             }
 
-            if (e instanceof InterruptedException) {
-                throw new IOException(e);
-            } else if (e instanceof IOException) {
+            this.permit.release();
+
+            if (e instanceof IOException) {
                 throw (IOException) e;
             } else {
                 throw (RuntimeException) e;
@@ -111,6 +128,37 @@ public class FrameGrabber {
 
     }
 
+    /**
+     * Enable or disable audio decoding, when disabled audio packets are discarded without
+     * being decoded and no audio buffer is produced.
+     * @param audio True to decode audio.
+     */
+    public void setAudio(boolean audio) {
+        this.audio = audio;
+    }
+
+    /** @return The timestamp of the first image frame of this segment, in microseconds. */
+    public long getRefTimestamp() {
+        return this.refTimestamp;
+    }
+
+    /**
+     * @return An estimation of the memory used by this grabber, in bytes: the segment held
+     * by its input stream and its decoded image frame. Zero once stopped.
+     */
+    public long getMemorySize() {
+        return this.grabber == null && this.bytes == null ? 0 : this.segmentSize + this.frameSize;
+    }
+
+    /**
+     * Detach this grabber from its layer, when it's no longer used and waiting to be
+     * stopped, so it doesn't count against the layer's admission limit. This can be
+     * called from any thread.
+     */
+    public void detach() {
+        this.permit.detach();
+    }
+
     public void stop() {
 
         if (this.grabber == null || this.tempAudioBuffer == null) {
@@ -122,6 +170,7 @@ public class FrameGrabber {
         } catch (IOException ignored) { }
 
         this.pools.freeAudioBuffer(this.tempAudioBuffer);
+        this.permit.release();
 
         this.grabber = null;
         this.tempAudioBuffer = null;
@@ -133,6 +182,17 @@ public class FrameGrabber {
 
     }
 
+    /**
+     * Check if grabbing at the given timestamp may return a new frame, without decoding. When
+     * the next frame has already been decoded and is still ahead of the timestamp, grabbing
+     * would not decode anything.
+     * @param timestamp The relative timestamp in microseconds. Relative to the first image frame
+     * @return False if {@link #grabAt(long, Consumer)} would return null.
+     */
+    public boolean hasFrameAt(long timestamp) {
+        return this.startAudioBuffers != null || this.lastFrame == null || this.lastFrame.timestamp <= timestamp + this.refTimestamp;
+    }
+
     /**
      * Grab the image frame at the corresponding timestamp, the grabber will attempt
      * to get the closest frame before timestamp.
@@ -144,7 +204,11 @@ public class FrameGrabber {
 
         if (this.startAudioBuffers != null) {
             // Called once after start with audio buffers placed before the first frame.
-            this.startAudioBuffers.forEach(audioBufferConsumer);
+            if (this.audio) {
+                this.startAudioBuffers.forEach(audioBufferConsumer);
+            } else {
+                this.startAudioBuffers.forEach(AudioStreamingBuffer::free);
+            }
             this.startAudioBuffers = null;
         }
 
@@ -161,7 +225,7 @@ public class FrameGrabber {
         }
 
         Frame frame;
-        while ((frame = this.grabber.grab()) != null) {
+        while ((frame = this.grabber.grabFrame(this.audio, true, true, false)) != null) {
             if (frame.image != null) {
 
                 if (this.deltaTimestamp == 0) {
@@ -180,7 +244,7 @@ public class FrameGrabber {
                 }
 
             } else if (frame.samples != null) {
-                audioBufferConsumer.accept(AudioStreamingBuffer.fromFrame(this.tempAudioBuffer, frame));
+                audioBufferConsumer.accept(AudioStreamingBuffer.fromFrame(this.pools.getAudioSink(), this.tempAudioBuffer, frame));
             }
         }
 
@@ -189,10 +253,14 @@ public class FrameGrabber {
     }
 
     public void grabRemaining(Consumer<AudioStreamingBuffer> audioBufferConsumer) throws IOException {
+        if (!this.audio) {
+            // Only audio frames are remaining, no need to demux them.
+            return;
+        }
         Frame frame;
         while ((frame = this.grabber.grab()) != null) {
             if (frame.samples != null) {
-                audioBufferConsumer.accept(AudioStreamingBuffer.fromFrame(this.tempAudioBuffer, frame));
+                audioBufferConsumer.accept(AudioStreamingBuffer.fromFrame(this.pools.getAudioSink(), this.tempAudioBuffer, frame));
             }
         }
     }
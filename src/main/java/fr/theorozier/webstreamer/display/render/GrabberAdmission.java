@@ -0,0 +1,183 @@
+package fr.theorozier.webstreamer.display.render;
+
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Admission controller for started {@link FrameGrabber}s, each holding an FFmpeg context,
+ * a decoded frame and a pooled audio buffer. A permit must be acquired before starting a
+ * grabber, and it's released when the grabber is stopped.</p>
+ * <p>The number of permits is limited globally and for each layer, excess requests are
+ * queued and ordered by {@link DisplayTask} priority, in the same way as the decode
+ * executor. A grabber detached from its layer, while waiting to be stopped, no longer
+ * counts against the layer limit.</p>
+ * <p>This class is thread safe.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class GrabberAdmission {
+
+    private static final Comparator<Waiter> WAITER_COMPARATOR = Comparator
+        .comparingLong(Waiter::time)
+        .thenComparingLong(Waiter::sequence);
+
+    private final int globalLimit;
+    private final int layerLimit;
+
+    /** Number of permits held by each layer, guarded by this. */
+    private final Reference2IntOpenHashMap<Object> layerCounts = new Reference2IntOpenHashMap<>();
+    /** Queued requests, ordered by priority, guarded by this. */
+    private final TreeSet<Waiter> waiters = new TreeSet<>(WAITER_COMPARATOR);
+    private int count;
+    private long sequence;
+
+    /**
+     * @param globalLimit Maximum number of started grabbers.
+     * @param layerLimit Maximum number of started grabbers for a single layer.
+     */
+    public GrabberAdmission(int globalLimit, int layerLimit) {
+        this.globalLimit = globalLimit;
+        this.layerLimit = layerLimit;
+    }
+
+    /** @return The number of permits currently held. */
+    public synchronized int getCount() {
+        return this.count;
+    }
+
+    /** @return The number of queued requests waiting for a permit. */
+    public synchronized int getQueueDepth() {
+        return this.waiters.size();
+    }
+
+    /**
+     * Acquire a permit to start a grabber, the returned future is completed once the
+     * permit is available, it can be cancelled to abort the request.
+     * @param layer The layer requesting the grabber.
+     * @param taskClass The class of the request, used for priority.
+     * @param distance The distance between the camera and the display, in blocks.
+     * @return The future of the permit.
+     */
+    public CompletableFuture<Permit> acquire(Object layer, DisplayTask taskClass, float distance) {
+        CompletableFuture<Permit> future = new CompletableFuture<>();
+        synchronized (this) {
+            // Queued requests are all blocked by their layer limit, so this can't overtake them.
+            if (this.canGrant(layer)) {
+                this.take(layer);
+                future.complete(new Permit(layer));
+                return future;
+            }
+            Waiter waiter = new Waiter(layer, System.nanoTime() + taskClass.getDelay(distance), this.sequence++, future);
+            this.waiters.add(waiter);
+            future.whenComplete((permit, e) -> {
+                if (future.isCancelled()) {
+                    this.removeWaiter(waiter);
+                }
+            });
+        }
+        return future;
+    }
+
+    private synchronized void removeWaiter(Waiter waiter) {
+        this.waiters.remove(waiter);
+    }
+
+    private boolean canGrant(Object layer) {
+        return this.count < this.globalLimit && this.layerCounts.getInt(layer) < this.layerLimit;
+    }
+
+    private void take(Object layer) {
+        this.count++;
+        this.layerCounts.addTo(layer, 1);
+    }
+
+    /**
+     * @param layer The layer of the permit.
+     * @param fromLayer True to release the permit from its layer count.
+     * @param fromGlobal True to release the permit from the global count.
+     */
+    private void release(Object layer, boolean fromLayer, boolean fromGlobal) {
+
+        List<Waiter> granted = new ArrayList<>();
+
+        synchronized (this) {
+            if (fromGlobal) {
+                this.count--;
+            }
+            if (fromLayer && this.layerCounts.addTo(layer, -1) <= 1) {
+                this.layerCounts.removeInt(layer);
+            }
+            Iterator<Waiter> it = this.waiters.iterator();
+            while (it.hasNext() && this.count < this.globalLimit) {
+                Waiter waiter = it.next();
+                if (waiter.future.isDone()) {
+                    it.remove();
+                } else if (this.canGrant(waiter.layer)) {
+                    it.remove();
+                    granted.add(waiter);
+                    this.take(waiter.layer);
+                }
+            }
+        }
+
+        // Completing outside the lock, because dependent actions might release permits.
+        for (Waiter waiter : granted) {
+            if (!waiter.future.complete(new Permit(waiter.layer))) {
+                // Cancelled after being granted.
+                this.release(waiter.layer, true, true);
+            }
+        }
+
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "grabbers (started: " + this.count + "/" + this.globalLimit + ", queued: " + this.waiters.size() + ")";
+    }
+
+    /** A permit to start a grabber, it must be released once, when the grabber is stopped. */
+    public class Permit {
+
+        private static final int HELD = 0;
+        private static final int DETACHED = 1;
+        private static final int RELEASED = 2;
+
+        private final Object layer;
+        private final AtomicInteger state = new AtomicInteger(HELD);
+
+        private Permit(Object layer) {
+            this.layer = layer;
+        }
+
+        /**
+         * Detach this permit from its layer, once its grabber is no longer used but before
+         * it's stopped, so the layer can start its next grabbers. The permit still counts
+         * globally until released. This can be called from any thread.
+         */
+        public void detach() {
+            if (this.state.compareAndSet(HELD, DETACHED)) {
+                GrabberAdmission.this.release(this.layer, true, false);
+            }
+        }
+
+        /** Release this permit, this can be called multiple times and from any thread. */
+        public void release() {
+            int previous = this.state.getAndSet(RELEASED);
+            if (previous != RELEASED) {
+                GrabberAdmission.this.release(this.layer, previous == HELD, true);
+            }
+        }
+
+    }
+
+    private record Waiter(Object layer, long time, long sequence, CompletableFuture<Permit> future) { }
+
+}
@@ -0,0 +1,260 @@
+package fr.theorozier.webstreamer.display.render;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import org.jetbrains.annotations.Nullable;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL44;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Ring of pixel unpack buffers, used to upload frames to a texture without a synchronous
+ * copy on the render thread. A frame is first copied to a staging buffer, then the texture
+ * upload is sourced from that buffer so the driver can transfer it asynchronously. A fence
+ * is placed after each upload, and a buffer is only reused once its fence is signaled.</p>
+ * <p>When buffer storage is supported, buffers are persistently mapped and can be filled
+ * from decode threads. Otherwise, they are orphaned and mapped on the render thread for
+ * each frame.</p>
+ * <p>Slots are acquired and uploaded from render thread, but they can be filled and released
+ * from any thread.</p>
+ */
+@Environment(EnvType.CLIENT)
+public class PixelBufferRing {
+
+    /** Number of buffers of each ring, zero to disable staging and upload frames directly. */
+    public static final int RING_SIZE = Math.max(0, Integer.getInteger("webstreamer.pixelBuffers", 3));
+    /** True to never use persistent mapping even if supported, this is used to test the fallback. */
+    private static final boolean NO_BUFFER_STORAGE = Boolean.getBoolean("webstreamer.noBufferStorage");
+
+    private static final int PERSISTENT_FLAGS = GL30.GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+
+    private final Slot[] slots;
+    private final boolean persistent;
+    private int index;
+    /** True once freed, pending slots are then deleted when released, guarded by this. */
+    private boolean freed;
+
+    /** <b>Must be called from render thread.</b> */
+    public PixelBufferRing() {
+        RenderSystem.assertOnRenderThread();
+        GLCapabilities caps = GL.getCapabilities();
+        this.persistent = !NO_BUFFER_STORAGE && (caps.OpenGL44 || caps.GL_ARB_buffer_storage);
+        this.slots = new Slot[RING_SIZE];
+        for (int i = 0; i < RING_SIZE; i++) {
+            this.slots[i] = new Slot();
+        }
+    }
+
+    /** @return True if buffers are persistently mapped, so they can be filled from any thread. */
+    public boolean isPersistent() {
+        return this.persistent;
+    }
+
+    /** @return The memory used by staging buffers, in bytes. */
+    public synchronized long getMemorySize() {
+        long size = 0;
+        for (Slot slot : this.slots) {
+            size += slot.capacity;
+        }
+        return size;
+    }
+
+    /**
+     * Acquire the next buffer, persistently mapped with at least the given capacity, so it
+     * can be filled from any thread. It must be uploaded or released once.
+     * <b>Must be called from render thread.</b>
+     * @param capacity The minimum capacity of the buffer, in bytes.
+     * @return The slot, or null if not persistent or if the next buffer is still in use.
+     */
+    @Nullable
+    public synchronized Slot acquire(long capacity) {
+        if (!this.persistent || this.freed) {
+            return null;
+        }
+        Slot slot = this.nextSlot();
+        if (slot != null) {
+            if (slot.capacity < capacity) {
+                slot.allocatePersistent(capacity);
+            }
+            slot.pending = true;
+            slot.written = 0;
+        }
+        return slot;
+    }
+
+    /**
+     * Copy the given data to the next buffer, on the render thread. It must be uploaded or
+     * released once. <b>Must be called from render thread.</b>
+     * @param data The data to copy, from its position to its limit.
+     * @return The slot, or null if the next buffer is still in use.
+     */
+    @Nullable
+    public synchronized Slot stage(ByteBuffer data) {
+        if (this.freed) {
+            return null;
+        }
+        Slot slot = this.nextSlot();
+        if (slot != null) {
+            if (this.persistent) {
+                if (slot.capacity < data.remaining()) {
+                    slot.allocatePersistent(data.remaining());
+                }
+                slot.write(data);
+            } else {
+                slot.writeMapped(data);
+            }
+            slot.pending = true;
+        }
+        return slot;
+    }
+
+    /**
+     * Place a fence after an upload sourced from the given slot, and release it.
+     * <b>Must be called from render thread.</b>
+     */
+    public synchronized void fence(Slot slot) {
+        slot.fence = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        this.release(slot);
+    }
+
+    private synchronized void release(Slot slot) {
+        if (slot.pending) {
+            slot.pending = false;
+            if (this.freed) {
+                RenderSystem.recordRenderCall(slot::delete);
+            }
+        }
+    }
+
+    /** Get the next slot if it's no longer used by the GPU, and move forward in the ring. */
+    @Nullable
+    private Slot nextSlot() {
+        if (this.slots.length == 0) {
+            return null;
+        }
+        Slot slot = this.slots[this.index];
+        if (slot.pending) {
+            return null;
+        }
+        if (slot.fence != 0) {
+            if (GL32.glClientWaitSync(slot.fence, 0, 0) == GL32.GL_TIMEOUT_EXPIRED) {
+                return null;
+            }
+            GL32.glDeleteSync(slot.fence);
+            slot.fence = 0;
+        }
+        this.index = (this.index + 1) % this.slots.length;
+        return slot;
+    }
+
+    /**
+     * Free all buffers, buffers that are still pending are freed once released.
+     * <b>Must be called from render thread.</b>
+     */
+    public synchronized void free() {
+        this.freed = true;
+        for (Slot slot : this.slots) {
+            if (!slot.pending) {
+                slot.delete();
+            }
+        }
+    }
+
+    /** A staging buffer of the ring. */
+    public class Slot {
+
+        private int id;
+        private long capacity;
+        /** The persistent mapping of the buffer, or null if not persistent. */
+        private ByteBuffer mapped;
+        private long fence;
+        /** True between acquire and upload or release, guarded by the ring. */
+        private boolean pending;
+        /** Number of bytes written since acquired. */
+        private volatile int written;
+
+        public int getId() {
+            return this.id;
+        }
+
+        /** @return True if exactly the given number of bytes has been written to this buffer. */
+        public boolean isWritten(int size) {
+            return this.written == size;
+        }
+
+        /**
+         * Copy the given data to this buffer, this can be called from any thread once the
+         * slot is acquired, until it's uploaded or released.
+         * @param data The data to copy, from its position to its limit.
+         * @return False if the data doesn't fit in this buffer, nothing is copied.
+         */
+        public boolean write(ByteBuffer data) {
+            int size = data.remaining();
+            ByteBuffer mapped = this.mapped;
+            if (mapped == null || size > this.capacity) {
+                this.written = 0;
+                return false;
+            }
+            MemoryUtil.memCopy(MemoryUtil.memAddress(data), MemoryUtil.memAddress(mapped), size);
+            this.written = size;
+            return true;
+        }
+
+        /** Release this slot without uploading it, this can be called from any thread. */
+        public void release() {
+            PixelBufferRing.this.release(this);
+        }
+
+        private void allocatePersistent(long capacity) {
+            this.delete();
+            this.id = GL15.glGenBuffers();
+            GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, this.id);
+            GL44.glBufferStorage(GL21.GL_PIXEL_UNPACK_BUFFER, capacity, PERSISTENT_FLAGS);
+            this.mapped = GL30.glMapBufferRange(GL21.GL_PIXEL_UNPACK_BUFFER, 0, capacity, PERSISTENT_FLAGS, null);
+            GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+            this.capacity = capacity;
+        }
+
+        private void writeMapped(ByteBuffer data) {
+            int size = data.remaining();
+            if (this.id == 0) {
+                this.id = GL15.glGenBuffers();
+            }
+            GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, this.id);
+            // Orphan the previous storage, so the driver doesn't wait for its transfer.
+            GL15.glBufferData(GL21.GL_PIXEL_UNPACK_BUFFER, size, GL15.GL_STREAM_DRAW);
+            ByteBuffer mapped = GL30.glMapBufferRange(GL21.GL_PIXEL_UNPACK_BUFFER, 0, size, GL30.GL_MAP_WRITE_BIT | GL30.GL_MAP_INVALIDATE_BUFFER_BIT, null);
+            if (mapped != null) {
+                MemoryUtil.memCopy(MemoryUtil.memAddress(data), MemoryUtil.memAddress(mapped), size);
+                GL15.glUnmapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER);
+            }
+            GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+            this.capacity = size;
+            this.written = mapped == null ? 0 : size;
+        }
+
+        private void delete() {
+            if (this.fence != 0) {
+                GL32.glDeleteSync(this.fence);
+                this.fence = 0;
+            }
+            if (this.id != 0) {
+                // Deleting the buffer also unmaps it.
+                GL15.glDeleteBuffers(this.id);
+                this.id = 0;
+            }
+            this.mapped = null;
+            this.capacity = 0;
+        }
+
+    }
+
+}
@@ -1,5 +1,6 @@
 package fr.theorozier.webstreamer.display.source;
 
+import fr.theorozier.webstreamer.util.SingleFlightHttpClient;
 import net.minecraft.nbt.CompoundTag;
 import org.jetbrains.annotations.NotNull;
 
@@ -13,6 +14,17 @@ public interface DisplaySource {
 
     void resetUri();
 
+    /**
+     * Get a key identifying the stream of this source, displays with the same key share
+     * the same layer, even if their URI changes, for example when a token is refreshed.
+     * By default, this is the URI without its authentication query parameters.
+     * @param uri The URI returned by {@link #getUri()}.
+     * @return The stream key.
+     */
+    default String getStreamKey(URI uri) {
+        return SingleFlightHttpClient.normalize(uri).toString();
+    }
+
     String getStatus();
 
     void writeNbt(CompoundTag nbt);
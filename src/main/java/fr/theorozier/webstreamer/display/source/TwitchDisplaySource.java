@@ -63,6 +63,12 @@ public class TwitchDisplaySource implements DisplaySource {
         return null;
     }
 
+    /** The playlist URI contains a token that changes on each request, so the channel and quality are used. */
+    @Override
+    public String getStreamKey(URI uri) {
+        return TYPE + ":" + this.channel + "/" + this.quality;
+    }
+
     @Override
     public void resetUri() {
         if (this.channel != null) {
@@ -6,7 +6,7 @@ import net.fabricmc.api.Environment;
 import java.net.URI;
 
 @Environment(EnvType.CLIENT)
-public record DisplayUrl(URI uri, int id) {
+public record DisplayUrl(URI uri, int id, String streamKey) {
 
     public URI getContextUri(String path) {
         return this.uri.resolve(path);
@@ -6,19 +6,106 @@ import net.fabricmc.api.Environment;
 
 import java.net.URI;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.function.IntConsumer;
 
+/**
+ * <p>Registry of display URLs, by stream key. Each allocated URL is referenced until
+ * released, unreferenced URLs are kept for a while so their id can be reused if the
+ * same stream is displayed again, the oldest ones are removed once their limit is
+ * reached, and their id is given to the eviction listener.</p>
+ * <p>Ids are never reused for different streams. This class is thread safe.</p>
+ */
 @Environment(EnvType.CLIENT)
 public class DisplayUrlManager {
 
-    private final Map<URI, DisplayUrl> urlCache = new HashMap<>();
+    /** Maximum number of unreferenced URLs kept in the registry. */
+    private static final int MAX_UNREFERENCED_COUNT = 64;
+
+    /** Entries by stream key, guarded by this. */
+    private final Map<String, Entry> entries = new HashMap<>();
+    /** Stream keys of unreferenced entries, from the oldest released, guarded by this. */
+    private final LinkedHashSet<String> unreferencedKeys = new LinkedHashSet<>();
+    private int nextId = 1;
+    /** Listener of evicted ids, called by the thread releasing the URL, out of the lock. */
+    private final IntConsumer evictionListener;
+
+    /**
+     * @param evictionListener Called with the id of each URL removed from the registry, so
+     *                         the resources kept for that id can be freed.
+     */
+    public DisplayUrlManager(IntConsumer evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Allocate a display URL for the given stream, and take a reference on it that must be
+     * released with {@link #releaseUrl(DisplayUrl)}. The same stream key always gives the
+     * same id while in the registry. If the URI of the stream changed, a display URL with
+     * the same id and the new URI is returned, and replaces the previous one.
+     * @param uri The current URI of the stream.
+     * @param streamKey The stream key, see {@link fr.theorozier.webstreamer.display.source.DisplaySource#getStreamKey(URI)}.
+     * @return The display URL.
+     */
+    public synchronized DisplayUrl allocUri(URI uri, String streamKey) {
+        Entry entry = this.entries.get(streamKey);
+        if (entry == null) {
+            entry = new Entry(new DisplayUrl(uri, this.nextId++, streamKey));
+            this.entries.put(streamKey, entry);
+            WebStreamer.LOGGER.info("Allocated a new display url {}.", entry.url);
+        } else if (!entry.url.uri().equals(uri)) {
+            entry.url = new DisplayUrl(uri, entry.url.id(), streamKey);
+            WebStreamer.LOGGER.info("Refreshed display url {}.", entry.url);
+        }
+        if (entry.references++ == 0) {
+            this.unreferencedKeys.remove(streamKey);
+        }
+        return entry.url;
+    }
+
+    /**
+     * Release a reference taken with {@link #allocUri(URI, String)}.
+     * @param url The display URL, or a previous one of the same stream.
+     */
+    public void releaseUrl(DisplayUrl url) {
+        int evictedId = 0;
+        synchronized (this) {
+            Entry entry = this.entries.get(url.streamKey());
+            if (entry == null || entry.references <= 0) {
+                return;
+            }
+            if (--entry.references == 0) {
+                this.unreferencedKeys.add(url.streamKey());
+                if (this.unreferencedKeys.size() > MAX_UNREFERENCED_COUNT) {
+                    Iterator<String> it = this.unreferencedKeys.iterator();
+                    String oldestKey = it.next();
+                    it.remove();
+                    evictedId = this.entries.remove(oldestKey).url.id();
+                }
+            }
+        }
+        if (evictedId != 0) {
+            this.evictionListener.accept(evictedId);
+        }
+    }
+
+    /** @return The number of URLs in the registry, referenced or not. */
+    public synchronized int getCount() {
+        return this.entries.size();
+    }
+
+    /** Internal entry of the registry. */
+    private static class Entry {
+
+        private DisplayUrl url;
+        private int references;
+
+        private Entry(DisplayUrl url) {
+            this.url = url;
+        }
 
-    public DisplayUrl allocUri(URI uri) {
-        return urlCache.computeIfAbsent(uri, key -> {
-            final DisplayUrl result = new DisplayUrl(key, urlCache.size() + 1);
-            WebStreamer.LOGGER.info("Allocated a new display url {}.", result);
-            return result;
-        });
     }
 
 }
@@ -20,6 +20,12 @@ public class MixinLevelRenderer {
         WebStreamerClient.DISPLAY_LAYERS.tick();
     }
 
+    /** Displays sharing a layer are batched by the renderer, and drawn once block entities are rendered. */
+    @Inject(method = "renderLevel", at = @At(value = "INVOKE_STRING", target = "Lnet/minecraft/util/profiling/ProfilerFiller;popPush(Ljava/lang/String;)V", args = "ldc=destroyProgress"))
+    public void drawDisplayBatches(CallbackInfo info) {
+        WebStreamerClient.DISPLAY_LAYERS.drawBatches();
+    }
+
     @Inject(method = "setLevel", at = @At("HEAD"))
     public void setWorld(@Nullable ClientLevel world, CallbackInfo info) {
         if (world == null) {
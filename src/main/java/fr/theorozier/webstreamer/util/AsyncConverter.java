@@ -0,0 +1,21 @@
+package fr.theorozier.webstreamer.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A non-blocking variant of {@link Converter}, where the conversion is started and its
+ * result is given by a future. Cancelling the future should abort the conversion.
+ */
+@FunctionalInterface
+public interface AsyncConverter<FROM, TO> {
+
+    /**
+     * Start the conversion.
+     * @param from The input of the conversion.
+     * @param executor The executor to use for work that can't be done asynchronously.
+     * @return A future of the conversion's result.
+     */
+    CompletableFuture<TO> convert(FROM from, ExecutorService executor);
+
+}
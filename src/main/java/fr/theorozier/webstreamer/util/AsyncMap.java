@@ -1,57 +1,63 @@
 package fr.theorozier.webstreamer.util;
 
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
 
 import java.util.Iterator;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 
 /**
- * <p>A utility for asynchronously process data, using an executor and a future.</p>
+ * <p>A utility for asynchronously process data, using a non-blocking converter and a
+ * completable future. Pending requests can be cancelled, in such case the conversion is
+ * aborted, and already produced values are given to the cleanup function.</p>
  * <p>This class is not thread safe, you should call methods from one thread.</p>
  */
 public class AsyncMap<FROM, TO, EXC extends Exception> {
 
-    private final Converter<FROM, TO, EXC> converter;
+    private final AsyncConverter<FROM, TO> converter;
     private final Consumer<TO> cleanup;
     private final Int2ObjectOpenHashMap<TimedFuture<TO>> futures = new Int2ObjectOpenHashMap<>();
     private final long timeout;
 
     /** Internal future with a timeout. */
-    private record TimedFuture<TO>(Future<TO> future, long time, long timeout) {
+    private record TimedFuture<TO>(CompletableFuture<TO> future, long time, long timeout) {
 
         public boolean isTimedOut(long now) {
             return now - this.time >= this.timeout;
         }
 
-        public void cleanup(Consumer<TO> cleanup) {
-            try {
-                cleanup.accept(this.future.get());
-            } catch (InterruptedException | CancellationException | ExecutionException ignored) { }
+        public void cancel(ExecutorService executor, Consumer<TO> cleanup) {
+            Futures.cancelOrRelease(this.future, executor, cleanup);
         }
 
     }
 
     /**
      * Construct an async map.
-     * @param converter The function used to convert from the input element to an output,
-     *                  allowing a specific exception type.
-     * @param cleanup The function to clean up timed out futures.
+     * @param converter The function used to start the conversion from the input element to
+     *                  an output, its future may fail with the specific exception type.
+     * @param cleanup The function to clean up timed out or cancelled futures.
      * @param timeout The timeout for futures to cleanup.
      */
-    public AsyncMap(Converter<FROM, TO, EXC> converter, Consumer<TO> cleanup, long timeout) {
+    public AsyncMap(AsyncConverter<FROM, TO> converter, Consumer<TO> cleanup, long timeout) {
         this.converter = converter;
         this.cleanup = cleanup;
         this.timeout = timeout;
     }
 
     public void push(ExecutorService executor, FROM from, int key) {
-        this.futures.computeIfAbsent(key, key0 ->
-            new TimedFuture<>(executor.submit(() -> this.converter.convert(from)), System.nanoTime(), this.timeout)
-        );
+        // Not using a capturing lambda with computeIfAbsent, because this is usually called on each tick.
+        if (!this.futures.containsKey(key)) {
+            CompletableFuture<TO> future = this.converter.convert(from, executor);
+            this.futures.put(key, new TimedFuture<>(future, System.nanoTime(), this.timeout));
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -66,7 +72,7 @@ public class AsyncMap<FROM, TO, EXC extends Exception> {
                 try {
                     onSuccess.accept(future.future.get());
                 } catch (InterruptedException | CancellationException e) {
-                    // Cancel should not happen.
+                    // Cancel should not happen, cancelled futures are removed.
                 } catch (ExecutionException ee) {
                     try {
                         onError.accept((EXC) ee.getCause());
@@ -82,9 +88,59 @@ public class AsyncMap<FROM, TO, EXC extends Exception> {
         return false;
     }
 
+    /**
+     * Cancel all requests with a key strictly lower than the given one, this is useful
+     * when keys are ordered and older requests are no longer needed. Results that are
+     * already available are given to the cleanup function.
+     * @param executor The executor used to clean up already available results.
+     * @param minKey The minimum key of requests to keep.
+     */
+    public void cancelBelow(ExecutorService executor, int minKey) {
+        ObjectIterator<Int2ObjectMap.Entry<TimedFuture<TO>>> it = Int2ObjectMaps.fastIterator(this.futures);
+        while (it.hasNext()) {
+            Int2ObjectMap.Entry<TimedFuture<TO>> entry = it.next();
+            if (entry.getIntKey() < minKey) {
+                entry.getValue().cancel(executor, this.cleanup);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Cancel all requests with a key strictly greater than the given one, results that are
+     * already available are given to the cleanup function.
+     * @param executor The executor used to clean up already available results.
+     * @param maxKey The maximum key of requests to keep.
+     */
+    public void cancelAbove(ExecutorService executor, int maxKey) {
+        ObjectIterator<Int2ObjectMap.Entry<TimedFuture<TO>>> it = Int2ObjectMaps.fastIterator(this.futures);
+        while (it.hasNext()) {
+            Int2ObjectMap.Entry<TimedFuture<TO>> entry = it.next();
+            if (entry.getIntKey() > maxKey) {
+                entry.getValue().cancel(executor, this.cleanup);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Sum a value over all results that are available but not yet pulled.
+     * @param function The function giving the value of a result.
+     * @return The sum of values.
+     */
+    public long sumCompleted(ToLongFunction<TO> function) {
+        long sum = 0;
+        for (TimedFuture<TO> future : this.futures.values()) {
+            if (future.future.isDone() && !future.future.isCompletedExceptionally()) {
+                sum += function.applyAsLong(future.future.join());
+            }
+        }
+        return sum;
+    }
+
     public void cleanup(ExecutorService executor) {
         for (TimedFuture<TO> future : this.futures.values()) {
-            executor.execute(() -> future.cleanup(this.cleanup));
+            future.cancel(executor, this.cleanup);
         }
         this.futures.clear();
     }
@@ -94,11 +150,7 @@ public class AsyncMap<FROM, TO, EXC extends Exception> {
         while (it.hasNext()) {
             TimedFuture<TO> item = it.next();
             if (item.isTimedOut(now)) {
-                executor.execute(() -> {
-                    try {
-                        this.cleanup.accept(item.future.get());
-                    } catch (InterruptedException | ExecutionException ignored) { }
-                });
+                item.cancel(executor, this.cleanup);
                 it.remove();
             }
         }
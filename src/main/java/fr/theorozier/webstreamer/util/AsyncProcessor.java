@@ -2,14 +2,14 @@ package fr.theorozier.webstreamer.util;
 
 import java.util.Objects;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
- * <p>A utility for asynchronously process data, using an executor and a future.</p>
+ * <p>A utility for asynchronously process data, using an executor and a completable future.</p>
  * <p>This class is not thread safe, you should call methods from one thread.</p>
  *
  * @param <FROM> Input type of the conversion.
@@ -18,7 +18,7 @@ import java.util.function.Consumer;
  */
 public class AsyncProcessor<FROM, TO, EXC extends Exception> {
 
-    private final Converter<FROM, TO, EXC> converter;
+    private final AsyncConverter<FROM, TO> converter;
     
     /** True to allow two equal values to be pushed one after another. */
     private final boolean allowDuplicates;
@@ -26,21 +26,31 @@ public class AsyncProcessor<FROM, TO, EXC extends Exception> {
     private FROM requestedFrom;
     private boolean requested;
     
-    private Future<TO> future;
+    private CompletableFuture<TO> future;
     private FROM futureFrom;
     
     /**
      * Construct a new asynchronous value processor.
-     * @param converter A converter from input to output type with a specified exception type.
+     * @param converter A non-blocking converter from input to output type, its future may fail with
+     *                  the specified exception type.
      * @param allowDuplicates Set to true if this processor should accept duplicated value when calling {@link #push}.
      *                        This could be useful if the converter function is not stable and can return different
      *                        values for the same input depending on the context. For example with HTTP requests.
      */
-    public AsyncProcessor(Converter<FROM, TO, EXC> converter, boolean allowDuplicates) {
+    public AsyncProcessor(AsyncConverter<FROM, TO> converter, boolean allowDuplicates) {
         this.converter = converter;
         this.allowDuplicates = allowDuplicates;
     }
 
+    /**
+     * Construct a new asynchronous value processor from a blocking converter, run on the executor
+     * given to {@link #fetch}.
+     * @see #AsyncProcessor(AsyncConverter, boolean)
+     */
+    public AsyncProcessor(Converter<FROM, TO, EXC> converter, boolean allowDuplicates) {
+        this((from, executor) -> Futures.submit(executor, converter, from, null), allowDuplicates);
+    }
+
     public AsyncProcessor(Converter<FROM, TO, EXC> converter) {
         this(converter, false);
     }
@@ -56,7 +66,7 @@ public class AsyncProcessor<FROM, TO, EXC extends Exception> {
             try {
                 onSuccess.accept(this.futureFrom, this.future.get());
             } catch (InterruptedException | CancellationException e) {
-                // Cancel should not happen.
+                // Cancel should not happen, cancelled futures are removed.
             } catch (ExecutionException ee) {
                 try {
                     onError.accept(this.futureFrom, (EXC) ee.getCause());
@@ -72,7 +82,7 @@ public class AsyncProcessor<FROM, TO, EXC extends Exception> {
         if (this.future == null && this.requested) {
             FROM from = this.requestedFrom;
             this.futureFrom = from;
-            this.future = executor.submit(() -> this.converter.convert(from));
+            this.future = this.converter.convert(from, executor);
             this.requested = false;
         }
 
@@ -100,6 +110,19 @@ public class AsyncProcessor<FROM, TO, EXC extends Exception> {
         this.requested = false;
     }
     
+    /**
+     * Same as {@link #reset()}, but also cancel the value being processed, if any, by
+     * interrupting its conversion. Its result will never be given to {@link #fetch}.
+     */
+    public void cancel() {
+        this.reset();
+        if (this.future != null) {
+            this.future.cancel(true);
+            this.future = null;
+            this.futureFrom = null;
+        }
+    }
+    
     public boolean requested() {
         return this.requested;
     }
@@ -0,0 +1,66 @@
+package fr.theorozier.webstreamer.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Utilities for completable futures.
+ */
+public final class Futures {
+
+    private Futures() { }
+
+    /**
+     * <p>Submit a conversion to the given executor, the returned future can be cancelled and
+     * such cancellation interrupts the running conversion, so blocking operations such as
+     * HTTP requests are aborted.</p>
+     * <p>If the conversion still completes after cancellation, its result is given to the
+     * discard function, from the executor's thread.</p>
+     * @param executor The executor to run the conversion on.
+     * @param converter The conversion function.
+     * @param from The input of the conversion.
+     * @param discard The function to release a result produced after cancellation, or null.
+     * @return The completable future of the conversion's result.
+     */
+    public static <FROM, TO, EXC extends Exception> CompletableFuture<TO> submit(ExecutorService executor,
+                                                                                Converter<FROM, TO, EXC> converter,
+                                                                                FROM from,
+                                                                                @Nullable Consumer<TO> discard) {
+        CompletableFuture<TO> future = new CompletableFuture<>();
+        Future<?> task = executor.submit(() -> {
+            try {
+                TO to = converter.convert(from);
+                if (!future.complete(to) && discard != null) {
+                    discard.accept(to);
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        future.whenComplete((to, e) -> {
+            if (future.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Cancel the given future, or if it's already completed normally, release its result
+     * using the given executor.
+     * @param future The future to cancel.
+     * @param executor The executor to run the release function on.
+     * @param release The release function.
+     */
+    public static <T> void cancelOrRelease(CompletableFuture<T> future, ExecutorService executor, Consumer<T> release) {
+        if (!future.cancel(true)) {
+            // Not run if the future completed exceptionally.
+            future.thenAcceptAsync(release, executor);
+        }
+    }
+
+}
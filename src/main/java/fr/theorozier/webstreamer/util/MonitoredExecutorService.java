@@ -0,0 +1,94 @@
+package fr.theorozier.webstreamer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>An executor service delegating to another one, while counting tasks waiting to be
+ * started (queue depth) and tasks currently running.</p>
+ * <p>This class is thread safe.</p>
+ */
+public class MonitoredExecutorService extends AbstractExecutorService {
+
+    private final String name;
+    private final ExecutorService inner;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+
+    public MonitoredExecutorService(String name, ExecutorService inner) {
+        this.name = name;
+        this.inner = inner;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /** @return The number of submitted tasks that are not yet started. */
+    public int getQueueDepth() {
+        return this.queued.get();
+    }
+
+    /** @return The number of tasks currently running. */
+    public int getRunningCount() {
+        return this.running.get();
+    }
+
+    @Override
+    public void execute(@NotNull Runnable command) {
+        this.queued.incrementAndGet();
+        try {
+            this.inner.execute(() -> {
+                this.queued.decrementAndGet();
+                this.running.incrementAndGet();
+                try {
+                    command.run();
+                } finally {
+                    this.running.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        this.inner.shutdown();
+    }
+
+    @NotNull
+    @Override
+    public List<Runnable> shutdownNow() {
+        return this.inner.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return this.inner.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return this.inner.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        return this.inner.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " (queued: " + this.getQueueDepth() + ", running: " + this.getRunningCount() + ")";
+    }
+
+}
@@ -0,0 +1,149 @@
+package fr.theorozier.webstreamer.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A fixed thread pool executor where tasks are ordered by priority instead of FIFO.</p>
+ * <p>The priority of a task is given as a delay in nanoseconds, the task is ordered as if
+ * it was submitted later by this delay. Because all queued tasks age at the same rate,
+ * this ordering never changes while in queue, and a low priority task is guaranteed to
+ * run before any task submitted after its delay, so nothing starves.</p>
+ * <p>This class is thread safe.</p>
+ */
+public class PriorityExecutorService extends AbstractExecutorService {
+
+    private final String name;
+    private final ThreadPoolExecutor inner;
+    /** Sequence number of submitted tasks, to keep FIFO order between equal priorities. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    public PriorityExecutorService(String name, int threads, ThreadFactory threadFactory) {
+        this.name = name;
+        this.inner = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), threadFactory);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /** @return The number of submitted tasks that are not yet started. */
+    public int getQueueDepth() {
+        return this.inner.getQueue().size();
+    }
+
+    /** @return The approximate number of tasks currently running. */
+    public int getRunningCount() {
+        return this.inner.getActiveCount();
+    }
+
+    /**
+     * Execute the given command with a priority.
+     * @param command The command to execute.
+     * @param delay The priority delay in nanoseconds, zero is the highest priority.
+     */
+    public void execute(@NotNull Runnable command, long delay) {
+        this.execute(new CommandTask(command), delay);
+    }
+
+    /**
+     * Execute the given reusable task with a priority, without allocating.
+     * @param task The task to execute, it must not be queued or running.
+     * @param delay The priority delay in nanoseconds, zero is the highest priority.
+     */
+    public void execute(@NotNull Task task, long delay) {
+        task.time = System.nanoTime() + delay;
+        task.sequence = this.sequence.getAndIncrement();
+        this.inner.execute(task);
+    }
+
+    /**
+     * Submit the given task with a priority.
+     * @param task The task to execute.
+     * @param delay The priority delay in nanoseconds, zero is the highest priority.
+     * @return A future of the task's result.
+     */
+    public <T> Future<T> submit(@NotNull Callable<T> task, long delay) {
+        RunnableFuture<T> future = this.newTaskFor(task);
+        this.execute(future, delay);
+        return future;
+    }
+
+    /** Execute the given command with the highest priority. */
+    @Override
+    public void execute(@NotNull Runnable command) {
+        this.execute(command, 0L);
+    }
+
+    @Override
+    public void shutdown() {
+        this.inner.shutdown();
+    }
+
+    @NotNull
+    @Override
+    public List<Runnable> shutdownNow() {
+        return this.inner.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return this.inner.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return this.inner.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        return this.inner.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " (queued: " + this.getQueueDepth() + ", running: " + this.getRunningCount() + ")";
+    }
+
+    /**
+     * A task ordered by its virtual submission time. It can be executed again once it has
+     * run, so frequently executed tasks don't need to be allocated each time.
+     */
+    public static abstract class Task implements Runnable, Comparable<Task> {
+
+        private long time;
+        private long sequence;
+
+        @Override
+        public int compareTo(@NotNull Task o) {
+            // Subtract to compare, as recommended for nano time.
+            long diff = this.time - o.time;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return Long.compare(this.sequence, o.sequence);
+        }
+
+    }
+
+    /** Internal task of a command. */
+    private static class CommandTask extends Task {
+
+        private final Runnable command;
+
+        private CommandTask(Runnable command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            this.command.run();
+        }
+
+    }
+
+}
@@ -0,0 +1,214 @@
+package fr.theorozier.webstreamer.util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A wrapper of an HTTP client where concurrent GET requests of the same resource are
+ * coalesced into a single in-flight exchange, all callers then get the same response.</p>
+ * <p>Requests are identified by their normalized URI, where scheme and host are lower
+ * cased, default port and fragment are removed, and authentication query parameters
+ * (such as tokens and signatures) are ignored.</p>
+ * <p>This class is thread safe.</p>
+ */
+public class SingleFlightHttpClient {
+
+    /** Query parameters ignored when comparing requests, they don't change the resource. */
+    private static final Set<String> IGNORED_QUERY_PARAMETERS = Set.of("token", "sig", "signature", "expires");
+
+    private final HttpClient client;
+    private final ConcurrentHashMap<URI, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    public SingleFlightHttpClient(HttpClient client) {
+        this.client = client;
+    }
+
+    public HttpClient getClient() {
+        return this.client;
+    }
+
+    /** @return The total number of requests sent through {@link #getAsync(URI, Duration)}. */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /** @return The number of requests that have been attached to an already in-flight exchange. */
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+
+    /**
+     * <p>Send a GET request asynchronously, with the body as bytes. If an equivalent
+     * request is already in-flight, the returned future completes with its response
+     * instead of sending a new one.</p>
+     * <p>The returned body is shared between all coalesced callers, <b>it must not be
+     * modified</b>. Cancelling the returned future detaches the caller, the exchange is
+     * only aborted once all its callers are detached.</p>
+     * @param uri The URI of the resource.
+     * @param timeout The timeout of the request, only used if no request is in-flight.
+     * @return A future of the response, the status code must be checked by the caller.
+     * Every failure is reported through this future, an invalid URI fails it with an
+     * {@link IOException}.
+     */
+    public CompletableFuture<HttpResponse<byte[]>> getAsync(URI uri, Duration timeout) {
+
+        this.requestCount.incrementAndGet();
+
+        // Built before any flight is registered, so an invalid URI never leaves a flight
+        // that is never started.
+        final HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(uri).GET().timeout(timeout).build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new IOException("Invalid request URI: " + uri, e));
+        }
+
+        URI key = normalize(uri);
+
+        Flight flight;
+        for (;;) {
+            Flight newFlight = new Flight();
+            flight = this.flights.putIfAbsent(key, newFlight);
+            if (flight == null) {
+                flight = newFlight;
+                flight.join();
+                final Flight startedFlight = flight;
+                CompletableFuture<HttpResponse<byte[]>> exchange;
+                try {
+                    exchange = this.client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+                } catch (RuntimeException e) {
+                    exchange = CompletableFuture.failedFuture(new IOException("Failed to send request: " + uri, e));
+                }
+                flight.start(exchange, () -> this.flights.remove(key, startedFlight));
+                break;
+            } else if (flight.join()) {
+                this.coalescedCount.incrementAndGet();
+                break;
+            } else {
+                // The flight has been aborted but not yet removed.
+                this.flights.remove(key, flight);
+            }
+        }
+
+        final Flight joinedFlight = flight;
+        CompletableFuture<HttpResponse<byte[]>> waiter = new CompletableFuture<>();
+        flight.future.whenComplete((res, e) -> {
+            if (e != null) {
+                waiter.completeExceptionally(e);
+            } else {
+                waiter.complete(res);
+            }
+        });
+        waiter.whenComplete((res, e) -> {
+            if (waiter.isCancelled()) {
+                joinedFlight.leave();
+            }
+        });
+        return waiter;
+
+    }
+
+    /**
+     * Normalize the given URI to identify equivalent requests.
+     * @param uri The URI to normalize.
+     * @return The normalized URI, or the original one if it can't be normalized.
+     */
+    public static URI normalize(URI uri) {
+
+        String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.ROOT);
+        String host = uri.getHost() == null ? null : uri.getHost().toLowerCase(Locale.ROOT);
+
+        int port = uri.getPort();
+        if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+            port = -1;
+        }
+
+        String query = uri.getRawQuery();
+        if (query != null) {
+            StringBuilder builder = new StringBuilder();
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                String name = eq < 0 ? param : param.substring(0, eq);
+                if (!param.isEmpty() && !IGNORED_QUERY_PARAMETERS.contains(name.toLowerCase(Locale.ROOT))) {
+                    if (builder.length() != 0) {
+                        builder.append('&');
+                    }
+                    builder.append(param);
+                }
+            }
+            query = builder.length() == 0 ? null : builder.toString();
+        }
+
+        try {
+            URI base = new URI(scheme, uri.getUserInfo(), host, port, uri.getPath(), null, null).normalize();
+            // Raw query is appended afterward to avoid double encoding.
+            return query == null ? base : URI.create(base + "?" + query);
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return uri;
+        }
+
+    }
+
+    /** Internal in-flight exchange, shared between its waiting callers. */
+    private static class Flight {
+
+        private final CompletableFuture<HttpResponse<byte[]>> future = new CompletableFuture<>();
+        private CompletableFuture<HttpResponse<byte[]>> exchange;
+        /** Number of callers waiting for this flight, guarded by this. */
+        private int waiters;
+        /** True if all callers left and the exchange has been aborted, guarded by this. */
+        private boolean aborted;
+
+        private void start(CompletableFuture<HttpResponse<byte[]>> exchange, Runnable onDone) {
+            synchronized (this) {
+                this.exchange = exchange;
+            }
+            exchange.whenComplete((res, e) -> {
+                onDone.run();
+                if (e instanceof CompletionException && e.getCause() != null) {
+                    e = e.getCause();
+                }
+                if (e != null) {
+                    this.future.completeExceptionally(e);
+                } else {
+                    this.future.complete(res);
+                }
+            });
+        }
+
+        /** @return False if this flight has been aborted and can't be joined. */
+        private synchronized boolean join() {
+            if (this.aborted) {
+                return false;
+            }
+            this.waiters++;
+            return true;
+        }
+
+        private synchronized void leave() {
+            if (--this.waiters == 0 && !this.future.isDone()) {
+                this.aborted = true;
+                this.future.cancel(true);
+                if (this.exchange != null) {
+                    this.exchange.cancel(true);
+                }
+            }
+        }
+
+    }
+
+}
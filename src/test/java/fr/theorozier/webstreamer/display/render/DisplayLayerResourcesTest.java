@@ -0,0 +1,229 @@
+package fr.theorozier.webstreamer.display.render;
+
+import com.sun.management.ThreadMXBean;
+import fr.theorozier.webstreamer.display.audio.AudioStreamingBuffer;
+import fr.theorozier.webstreamer.display.audio.AudioStreamingSource;
+import fr.theorozier.webstreamer.display.audio.LoopbackAudioSink;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.Bootstrap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ShortBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The audio pipeline of layers, driven by a loopback sink with a manual clock, so
+ * playback is deterministic.
+ */
+public class DisplayLayerResourcesTest {
+
+    private static final int FREQUENCY = 48000;
+    /** Timestamp of the first buffer, in microseconds, buffers at zero are discarded by sources. */
+    private static final long START = 1000000L;
+    /** Duration of each buffer, in microseconds. */
+    private static final long BUFFER_DURATION = 100000L;
+    private static final int BUFFER_SAMPLES = (int) (BUFFER_DURATION * FREQUENCY / 1000000L);
+    /** Duration of a tick, in microseconds. */
+    private static final long TICK_DURATION = 20000L;
+    /** Number of ticks to warm up, and then to measure, for allocation checks. */
+    private static final int ALLOCATION_TICKS = 2000;
+
+    private long clock;
+    private LoopbackAudioSink sink;
+    private DisplayLayerResources res;
+    /** Timestamp of the next buffer to queue, in microseconds. */
+    private long nextBufferTimestamp;
+
+    @BeforeAll
+    public static void bootstrap() {
+        // Resources log through the mod's logger, whose class also creates blocks and items.
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+
+    @BeforeEach
+    public void setup() {
+        this.clock = 0L;
+        this.sink = new LoopbackAudioSink(() -> this.clock);
+        this.res = new DisplayLayerResources(this.sink);
+        this.nextBufferTimestamp = START;
+    }
+
+    @AfterEach
+    public void teardown() {
+        this.res.getDecodeExecutor().shutdownNow();
+        this.res.getIoExecutor().shutdownNow();
+    }
+
+    @Test
+    public void continuousStreamHasNoUnderrunNorDrift() {
+
+        AudioStreamingSource source = this.res.allocAudioSource();
+        assertNotNull(source);
+
+        // Like a layer, buffers are decoded one buffer ahead of the video playhead.
+        this.queueBuffers(source, 2);
+        source.playFrom(START);
+
+        for (long time = START; time < START + 10000000L; time += TICK_DURATION) {
+            if (this.nextBufferTimestamp <= time + BUFFER_DURATION) {
+                this.queueBuffers(source, 1);
+            }
+            source.playFrom(time);
+            this.advance(TICK_DURATION);
+            // The audio clock follows the wall clock to the sample.
+            long playingTimestamp = source.getPlayingTimestamp();
+            assertEquals(time + TICK_DURATION, playingTimestamp, 1000000L / FREQUENCY);
+        }
+
+        assertTrue(source.isPlaying());
+        assertEquals(0, this.sink.getUnderruns().size());
+        assertEquals(10000000000L, this.sink.getPlayedNanos());
+
+        this.res.freeAudioSource(source);
+
+    }
+
+    @Test
+    public void starvedStreamUnderrunsOnce() {
+
+        AudioStreamingSource source = this.res.allocAudioSource();
+        assertNotNull(source);
+
+        this.queueBuffers(source, 3);
+        source.playFrom(START);
+
+        // Past the queued buffers, the source stops by itself.
+        this.advance(BUFFER_DURATION * 3 + TICK_DURATION);
+        assertFalse(source.isPlaying());
+        assertEquals(-1L, source.getPlayingTimestamp());
+        assertEquals(1, this.sink.getUnderruns().size());
+        assertEquals(BUFFER_DURATION * 3 * 1000L, (long) this.sink.getUnderruns().get(0));
+
+        // Once fed again, playback restarts from the given timestamp.
+        long time = START + BUFFER_DURATION * 3 + TICK_DURATION;
+        this.nextBufferTimestamp = time;
+        this.queueBuffers(source, 2);
+        source.playFrom(time);
+        assertTrue(source.isPlaying());
+        this.advance(TICK_DURATION);
+        assertEquals(time + TICK_DURATION, source.getPlayingTimestamp(), 1000000L / FREQUENCY);
+        assertEquals(1, this.sink.getUnderruns().size());
+
+        this.res.freeAudioSource(source);
+
+    }
+
+    @Test
+    public void freedSourcesAreReused() {
+
+        AudioStreamingSource source = this.res.allocAudioSource();
+        assertNotNull(source);
+        this.queueBuffers(source, 2);
+        source.playFrom(START);
+        this.advance(TICK_DURATION);
+
+        // Given back stopped, with its buffers freed.
+        this.res.freeAudioSource(source);
+        assertFalse(source.isPlaying());
+        assertEquals(0L, source.getQueuedSize());
+        assertSame(source, this.res.allocAudioSource());
+
+    }
+
+    @Test
+    public void freedPoolDeletesSources() {
+
+        AudioStreamingSource source = this.res.allocAudioSource();
+        assertNotNull(source);
+        this.res.freeAudioSource(source);
+
+        this.res.freeAudioSources();
+        assertFalse(source.isValid());
+        AudioStreamingSource newSource = this.res.allocAudioSource();
+        assertNotNull(newSource);
+        assertNotSame(source, newSource);
+
+    }
+
+    /**
+     * The audio source calls done by layers on each tick must not allocate, otherwise the
+     * allocation rate grows with the number of audible layers.
+     */
+    @Test
+    public void sourceTickDoesNotAllocate() {
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long threadId = Thread.currentThread().getId();
+
+        AudioStreamingSource source = this.res.allocAudioSource();
+        assertNotNull(source);
+        BlockPos pos = new BlockPos(1, 2, 3);
+        ShortBuffer samples = ShortBuffer.allocate(BUFFER_SAMPLES);
+
+        long time = START;
+        long allocated = 0;
+        for (int tick = 0; tick < ALLOCATION_TICKS * 2; tick++) {
+
+            // Buffers are decoded by the grabber, their allocation is not measured.
+            AudioStreamingBuffer buffer = null;
+            AudioStreamingBuffer staleBuffer = null;
+            if (this.nextBufferTimestamp <= time + BUFFER_DURATION) {
+                buffer = AudioStreamingBuffer.fromRawData(this.sink, null, samples, 1, FREQUENCY, this.nextBufferTimestamp);
+                staleBuffer = AudioStreamingBuffer.fromRawData(this.sink, null, samples, 1, FREQUENCY, this.nextBufferTimestamp);
+                this.nextBufferTimestamp += BUFFER_DURATION;
+            }
+
+            long before = threads.getThreadAllocatedBytes(threadId);
+
+            if (buffer != null) {
+                source.queueBuffer(buffer);
+                // Same timestamp, like on stream restart, it's dropped.
+                source.queueBuffer(staleBuffer);
+            }
+            source.setPosition(pos);
+            source.setAttenuation(50f);
+            source.setVolume(1f);
+            source.unqueueAndFree();
+            source.getPlayingTimestamp();
+            source.playFrom(time);
+
+            if (tick >= ALLOCATION_TICKS) {
+                allocated += threads.getThreadAllocatedBytes(threadId) - before;
+            }
+
+            this.advance(TICK_DURATION);
+            time += TICK_DURATION;
+
+        }
+
+        assertEquals(0, this.sink.getUnderruns().size());
+        // Less than a byte per tick, so not one object per tick.
+        assertTrue(allocated < ALLOCATION_TICKS, "Allocated " + allocated + " bytes for " + ALLOCATION_TICKS + " ticks.");
+
+        this.res.freeAudioSource(source);
+
+    }
+
+    /** Advance the clock by the given duration, in microseconds. */
+    private void advance(long duration) {
+        this.clock += duration * 1000L;
+    }
+
+    private void queueBuffers(AudioStreamingSource source, int count) {
+        for (int i = 0; i < count; i++) {
+            ShortBuffer samples = ShortBuffer.allocate(BUFFER_SAMPLES);
+            source.queueBuffer(AudioStreamingBuffer.fromRawData(this.sink, null, samples, 1, FREQUENCY, this.nextBufferTimestamp));
+            this.nextBufferTimestamp += BUFFER_DURATION;
+        }
+    }
+
+}
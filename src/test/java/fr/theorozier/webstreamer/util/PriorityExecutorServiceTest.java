@@ -0,0 +1,102 @@
+package fr.theorozier.webstreamer.util;
+
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class PriorityExecutorServiceTest {
+
+    private static final int ITERATIONS = 2000;
+
+    private PriorityExecutorService executor;
+
+    @BeforeEach
+    public void setup() {
+        this.executor = new PriorityExecutorService("Test", 1, Executors.defaultThreadFactory());
+    }
+
+    @AfterEach
+    public void teardown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void tasksRunByPriority() throws InterruptedException {
+
+        // Occupy the only thread, so the following tasks are queued together.
+        CountDownLatch blocker = new CountDownLatch(1);
+        this.executor.execute(() -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException ignored) { }
+        });
+
+        List<Integer> order = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+        this.executor.execute(() -> { order.add(2); done.countDown(); }, 2000000000L);
+        this.executor.execute(() -> { order.add(0); done.countDown(); }, 0L);
+        this.executor.execute(() -> { order.add(1); done.countDown(); }, 1000000000L);
+        this.executor.execute(() -> { order.add(3); done.countDown(); }, 2000000000L);
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2, 3), order);
+
+    }
+
+    /** Executing a reusable task again must not allocate a queue entry. */
+    @Test
+    public void reusableTaskDoesNotAllocate() {
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long threadId = Thread.currentThread().getId();
+
+        CountingTask task = new CountingTask();
+        // Warm up, so the worker is started and the queue is grown.
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.executeAndWait(this.executor);
+        }
+
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.executeAndWait(this.executor);
+        }
+        allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+        // Some bytes may be allocated by a contended queue lock, but not one object per task.
+        assertTrue(allocated < ITERATIONS * 8L, "Allocated " + allocated + " bytes for " + ITERATIONS + " executions.");
+
+    }
+
+    private static class CountingTask extends PriorityExecutorService.Task {
+
+        private volatile int count;
+
+        @Override
+        public void run() {
+            this.count++;
+        }
+
+        void executeAndWait(PriorityExecutorService executor) {
+            int expected = this.count + 1;
+            executor.execute(this, 1000000L);
+            while (this.count != expected) {
+                Thread.yield();
+            }
+        }
+
+    }
+
+}